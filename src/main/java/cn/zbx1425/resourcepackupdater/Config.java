@@ -46,12 +46,41 @@ public class Config {
         "localPackName", JsonElement::getAsString, JsonPrimitive::new, "SyncedPack");
     public final ConfigItem<Boolean> disableBuiltinSources = new ConfigItem<>(
         "disableBuiltinSources", JsonElement::getAsBoolean, JsonPrimitive::new, false);
+    public final ConfigItem<Boolean> autoSelectSource = new ConfigItem<>(
+        "autoSelectSource", JsonElement::getAsBoolean, JsonPrimitive::new, false);
+    public final ConfigItem<Boolean> mirrorStriping = new ConfigItem<>(
+        "mirrorStriping", JsonElement::getAsBoolean, JsonPrimitive::new, false);
     public final ConfigItem<Boolean> pauseWhenSuccess = new ConfigItem<>(
         "pauseWhenSuccess", JsonElement::getAsBoolean, JsonPrimitive::new, false);
     public final ConfigItem<File> packBaseDirFile = new ConfigItem<File>(
         "packBaseDirFile", (json) -> new File(json.getAsString()),
             (value) -> new JsonPrimitive(value.toString()), () -> new File(getPackBaseDir()));
 
+    public final ConfigItem<Boolean> disableCertificateCheck = new ConfigItem<>(
+        "disableCertificateCheck", JsonElement::getAsBoolean, JsonPrimitive::new, false);
+    public final ConfigItem<Integer> minDownloadConcurrency = new ConfigItem<>(
+        "minDownloadConcurrency", JsonElement::getAsInt, JsonPrimitive::new, 2);
+    public final ConfigItem<Integer> maxDownloadConcurrency = new ConfigItem<>(
+        "maxDownloadConcurrency", JsonElement::getAsInt, JsonPrimitive::new, 16);
+    public final ConfigItem<Integer> archiveThreshold = new ConfigItem<>(
+        "archiveThreshold", JsonElement::getAsInt, JsonPrimitive::new, 30);
+    public final ConfigItem<Integer> segmentedDownloadThreshold = new ConfigItem<>(
+        "segmentedDownloadThreshold", JsonElement::getAsInt, JsonPrimitive::new, 32);
+    public final ConfigItem<Integer> downloadSegments = new ConfigItem<>(
+        "downloadSegments", JsonElement::getAsInt, JsonPrimitive::new, 4);
+    public final ConfigItem<Boolean> watchPackDir = new ConfigItem<>(
+        "watchPackDir", JsonElement::getAsBoolean, JsonPrimitive::new, false);
+    public final ConfigItem<Boolean> backgroundSync = new ConfigItem<>(
+        "backgroundSync", JsonElement::getAsBoolean, JsonPrimitive::new, false);
+    public final ConfigItem<Integer> decryptedAssetCacheMiB = new ConfigItem<>(
+        "decryptedAssetCacheMiB", JsonElement::getAsInt, JsonPrimitive::new, 0);
+    public final ConfigItem<Boolean> useObjectStore = new ConfigItem<>(
+        "useObjectStore", JsonElement::getAsBoolean, JsonPrimitive::new, false);
+    public final ConfigItem<Boolean> packedStorage = new ConfigItem<>(
+        "packedStorage", JsonElement::getAsBoolean, JsonPrimitive::new, false);
+    public final ConfigItem<Boolean> cachedListing = new ConfigItem<>(
+        "cachedListing", JsonElement::getAsBoolean, JsonPrimitive::new, false);
+
     public final ConfigItem<String> serverLockKey = new ConfigItem<>(
         "serverLockKey", JsonElement::getAsString, JsonPrimitive::new, "");
     public final ConfigItem<Boolean> clientEnforceInstall = new ConfigItem<>(
@@ -60,8 +89,11 @@ public class Config {
         "clientEnforceVersion", JsonElement::getAsString, JsonPrimitive::new, "");
 
     public List<ConfigItem<?>> configItems = List.of(
-        remoteConfigUrl, sourceList, selectedSource, localPackName, disableBuiltinSources,
-        pauseWhenSuccess, packBaseDirFile, serverLockKey, clientEnforceInstall, clientEnforceVersion
+        remoteConfigUrl, sourceList, selectedSource, localPackName, disableBuiltinSources, autoSelectSource,
+        mirrorStriping, pauseWhenSuccess, packBaseDirFile, disableCertificateCheck, minDownloadConcurrency, maxDownloadConcurrency,
+        archiveThreshold, segmentedDownloadThreshold, downloadSegments, watchPackDir, backgroundSync, decryptedAssetCacheMiB,
+        useObjectStore, packedStorage, cachedListing,
+        serverLockKey, clientEnforceInstall, clientEnforceVersion
     );
 
     public void load() throws IOException {
@@ -141,6 +173,10 @@ public class Config {
         return Paths.get(sx, "resourcepacks", localPackName.value).toAbsolutePath().normalize().toString();
     }
 
+    public Path getObjectStoreDir() {
+        return FabricLoader.getInstance().getGameDir().resolve(ResourcePackUpdater.MOD_ID).resolve("objects");
+    }
+
     public Path getConfigFilePath() {
         return FabricLoader.getInstance().getConfigDir().resolve(ResourcePackUpdater.MOD_ID + ".json");
     }
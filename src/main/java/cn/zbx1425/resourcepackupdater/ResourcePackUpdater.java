@@ -3,6 +3,7 @@ package cn.zbx1425.resourcepackupdater;
 import cn.zbx1425.resourcepackupdater.drm.ServerLockRegistry;
 import cn.zbx1425.resourcepackupdater.gui.gl.GlHelper;
 import cn.zbx1425.resourcepackupdater.gui.GlProgressScreen;
+import cn.zbx1425.resourcepackupdater.gui.SyncProgressToast;
 import cn.zbx1425.resourcepackupdater.io.Dispatcher;
 import cn.zbx1425.resourcepackupdater.io.network.DummyTrustManager;
 import com.google.gson.JsonParser;
@@ -48,14 +49,35 @@ public class ResourcePackUpdater implements ModInitializer {
         }
     }
 
+    private static Thread backgroundSyncThread;
+    private static boolean reloadingAfterBackgroundSync = false;
+
     public static void dispatchSyncWork() {
+        if (reloadingAfterBackgroundSync) return;
+        if (ResourcePackUpdater.CONFIG.backgroundSync.value) {
+            // With mirror racing the sync itself picks the source, starting from any of them
+            if ((ResourcePackUpdater.CONFIG.sourceList.value.size() == 1 || ResourcePackUpdater.CONFIG.autoSelectSource.value
+                    && !ResourcePackUpdater.CONFIG.sourceList.value.isEmpty())
+                    && (ResourcePackUpdater.CONFIG.selectedSource.value == null
+                    || ResourcePackUpdater.CONFIG.selectedSource.value.baseUrl.isEmpty())) {
+                ResourcePackUpdater.CONFIG.selectedSource.value = ResourcePackUpdater.CONFIG.sourceList.value.get(0);
+                ResourcePackUpdater.CONFIG.selectedSource.isFromLocal = true;
+            }
+            // Picking a source or reporting that there is none needs the full screen
+            if (ResourcePackUpdater.CONFIG.selectedSource.value != null
+                    && !ResourcePackUpdater.CONFIG.selectedSource.value.baseUrl.isEmpty()) {
+                dispatchBackgroundSyncWork();
+                return;
+            }
+        }
+
         GlHelper.initGlStates();
 
         while (true) {
             Dispatcher syncDispatcher = new Dispatcher();
             if (ResourcePackUpdater.CONFIG.selectedSource.value == null // TODO how did we get here?
                 || ResourcePackUpdater.CONFIG.selectedSource.value.baseUrl.isEmpty()) {
-                if (ResourcePackUpdater.CONFIG.sourceList.value.size() > 1) {
+                if (ResourcePackUpdater.CONFIG.sourceList.value.size() > 1 && !ResourcePackUpdater.CONFIG.autoSelectSource.value) {
                     ResourcePackUpdater.GL_PROGRESS_SCREEN.resetToSelectSource();
                     try {
                         while (ResourcePackUpdater.GL_PROGRESS_SCREEN.shouldContinuePausing(true)) {
@@ -66,7 +88,7 @@ public class ResourcePackUpdater implements ModInitializer {
                         break;
                     } catch (Exception ignored) {
                     }
-                } else if (ResourcePackUpdater.CONFIG.sourceList.value.size() == 1) {
+                } else if (!ResourcePackUpdater.CONFIG.sourceList.value.isEmpty()) {
                     ResourcePackUpdater.CONFIG.selectedSource.value = ResourcePackUpdater.CONFIG.sourceList.value.get(0);
                     ResourcePackUpdater.CONFIG.selectedSource.isFromLocal = true;
                 } else {
@@ -100,7 +122,7 @@ public class ResourcePackUpdater implements ModInitializer {
                         "",
                         false, false, true
                 );
-                if (ResourcePackUpdater.CONFIG.sourceList.value.size() <= 1) {
+                if (ResourcePackUpdater.CONFIG.sourceList.value.size() <= 1 || ResourcePackUpdater.CONFIG.autoSelectSource.value) {
                     break;
                 }
             } catch (Exception ignored) {
@@ -119,6 +141,56 @@ public class ResourcePackUpdater implements ModInitializer {
         GlHelper.resetGlStates();
     }
 
+    public static boolean isSyncingInBackground() {
+        return backgroundSyncThread != null && backgroundSyncThread.isAlive();
+    }
+
+    /**
+     * Runs the sync on a worker thread while the game goes on loading, with progress shown in a toast.
+     * The synced pack provides no files until the sync is verified, then resources are reloaded to pick it up.
+     */
+    private static void dispatchBackgroundSyncWork() {
+        // The running one reloads resources once it is done
+        if (isSyncingInBackground()) return;
+
+        ServerLockRegistry.lockAllSyncedPacks = true;
+        ServerLockRegistry.updateLocalServerLock(ResourcePackUpdater.CONFIG.packBaseDirFile.value);
+        SyncProgressToast toast = new SyncProgressToast();
+        // The toast component may not exist yet while the game is being constructed
+        Minecraft.getInstance().execute(() -> Minecraft.getInstance().getToasts().addToast(toast));
+
+        String baseDir = ResourcePackUpdater.CONFIG.getPackBaseDir();
+        Config.SourceProperty source = ResourcePackUpdater.CONFIG.selectedSource.value;
+        backgroundSyncThread = new Thread(() -> {
+            boolean syncSuccess;
+            try {
+                syncSuccess = new Dispatcher().runSync(baseDir, source, toast);
+            } catch (Exception ex) {
+                toast.setException(ex);
+                syncSuccess = false;
+            }
+            toast.finish();
+            boolean finalSyncSuccess = syncSuccess;
+            Minecraft.getInstance().execute(() -> {
+                ServerLockRegistry.lockAllSyncedPacks = !finalSyncSuccess;
+                ServerLockRegistry.updateLocalServerLock(ResourcePackUpdater.CONFIG.packBaseDirFile.value);
+                try {
+                    ResourcePackUpdater.CONFIG.save();
+                } catch (IOException ignored) { }
+                if (finalSyncSuccess) {
+                    reloadingAfterBackgroundSync = true;
+                    try {
+                        Minecraft.getInstance().reloadResourcePacks();
+                    } finally {
+                        reloadingAfterBackgroundSync = false;
+                    }
+                }
+            });
+        }, "RPU Background Sync");
+        backgroundSyncThread.setDaemon(true);
+        backgroundSyncThread.start();
+    }
+
     public static void modifyPackList() {
         Options options = Minecraft.getInstance().options;
         String expectedEntry = "file/" + ResourcePackUpdater.CONFIG.localPackName.value;
@@ -1,20 +1,43 @@
 package cn.zbx1425.resourcepackupdater.drm;
 
-import org.apache.commons.io.IOUtils;
-
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
+/**
+ * Encrypted assets start with the magic "ZBXNMB10", then int major and int minor version and a 32-byte AES key.
+ * <p>
+ * Version 1 follows with int ciphertext length and the whole content as one AES-CBC blob.
+ * Version 2 follows with int chunk size and long plain length, then the content cut into chunks of that size,
+ * each sealed on its own with AES-GCM (the chunk index as IV, whether it is the last chunk as associated data)
+ * and stored as ciphertext plus 16-byte tag. Any chunk can be read without the ones before it,
+ * and dropping chunks from the end is detected. Empty content is a single empty last chunk.
+ * New files are written as version 2, both are read.
+ */
 public class AssetEncryption {
 
     private static final byte[] HEADER_MAGIC = "ZBXNMB10".getBytes(StandardCharsets.UTF_8);
 
+    public static final int HEADER_LENGTH = HEADER_MAGIC.length + 4 + 4 + 32 + 4;
+
+    public static final int CHUNKED_VERSION = 2;
+    public static final int CHUNKED_HEADER_LENGTH = HEADER_MAGIC.length + 4 + 4 + 32 + 4 + 8;
+    public static final int CHUNK_SIZE = 65536;
+    public static final int CHUNK_TAG_LENGTH = 16;
+
     public static boolean isEncrypted(FileInputStream fis) throws IOException {
         fis.getChannel().position(0);
         boolean result = Arrays.equals(fis.readNBytes(HEADER_MAGIC.length), HEADER_MAGIC);
@@ -22,68 +45,274 @@ public class AssetEncryption {
         return result;
     }
 
+    /**
+     * Returns a stream of the plain content, decrypted a chunk at a time as it is read.
+     * The returned stream owns the given one and closes it.
+     */
     public static InputStream wrapInputStream(FileInputStream fis) throws IOException {
         if (isEncrypted(fis)) {
-            try (DataInputStream dis = new DataInputStream(fis)) {
+            try {
+                DataInputStream dis = new DataInputStream(fis);
                 int versionMajor = dis.readInt();
+                if (versionMajor == CHUNKED_VERSION) {
+                    return ChunkedAssetFile.open(fis.getChannel()).newInputStream();
+                }
                 int versionMinor = dis.readInt();
-                byte[] dContent;
-                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
                 byte[] key = dis.readNBytes(32);
-                SecretKeySpec aesKey = new SecretKeySpec(key, "AES");
-                byte[] iv = Arrays.copyOfRange(sha256.digest(key), 0, 16);
-                IvParameterSpec aesIv = new IvParameterSpec(iv);
-
                 int len = dis.readInt();
-                byte[] eContent = dis.readNBytes(len);
-                Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                cipher.init(Cipher.DECRYPT_MODE, aesKey, aesIv);
-                dContent = cipher.doFinal(eContent);
-                return new ByteArrayInputStream(dContent);
+                Cipher cipher = createCipher(Cipher.DECRYPT_MODE, key);
+                return new DecryptingInputStream(fis, cipher, len);
             } catch (Exception ex) {
-                throw new IOException(ex);
+                fis.close();
+                throw ex instanceof IOException ? (IOException) ex : new IOException(ex);
             }
         } else {
             return fis;
         }
     }
 
+    /**
+     * Like wrapInputStream, for a file stored in the given region of a larger one. The channel is read with
+     * positional reads only, and closed along with the returned stream only if that owns it.
+     */
+    public static InputStream wrapRegion(FileChannel channel, long offset, long length, boolean ownsChannel) throws IOException {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(Math.min(HEADER_LENGTH, (int) Math.min(length, Integer.MAX_VALUE)));
+            while (header.hasRemaining()) {
+                if (channel.read(header, offset + header.position()) < 0) throw new EOFException("Region is truncated");
+            }
+            header.flip();
+            if (header.remaining() < HEADER_LENGTH || !Arrays.equals(Arrays.copyOf(header.array(), HEADER_MAGIC.length), HEADER_MAGIC)) {
+                return new RegionInputStream(channel, offset, length, ownsChannel);
+            }
+            header.position(HEADER_MAGIC.length);
+            int versionMajor = header.getInt();
+            if (versionMajor == CHUNKED_VERSION) {
+                return ChunkedAssetFile.open(channel, offset, length, ownsChannel).newInputStream();
+            }
+            header.getInt();
+            byte[] key = new byte[32];
+            header.get(key);
+            int len = header.getInt();
+            return new DecryptingInputStream(new RegionInputStream(channel, offset + HEADER_LENGTH, length - HEADER_LENGTH, ownsChannel),
+                    createCipher(Cipher.DECRYPT_MODE, key), len);
+        } catch (IOException ex) {
+            if (ownsChannel) channel.close();
+            throw ex;
+        }
+    }
+
     public static void writeEncrypted(byte[] src, File target) throws IOException {
-        byte[] eContent, key;
+        writeEncrypted(new ByteArrayInputStream(src), target);
+    }
+
+    public static void writeEncrypted(InputStream src, File target) throws IOException {
+        byte[] key = generateKey();
+        ChunkedEncryptor encryptor = new ChunkedEncryptor(key);
+        try (FileChannel channel = FileChannel.open(target.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream bos = new BufferedOutputStream(Channels.newOutputStream(channel));
+            // Content length is not known yet, it gets patched in at the end
+            bos.write(encodeChunkedHeader(key, 0).array());
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int n;
+            while ((n = src.read(buffer)) != -1) bos.write(encryptor.update(buffer, 0, n));
+            bos.write(encryptor.doFinal());
+            bos.flush();
+            ByteBuffer header = encodeChunkedHeader(key, encryptor.getPlainLength());
+            while (header.hasRemaining()) channel.write(header, header.position());
+        }
+    }
+
+    public static byte[] generateKey() throws IOException {
         try {
-            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
             KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
             keyGenerator.init(256);
-            key = keyGenerator.generateKey().getEncoded();
+            return keyGenerator.generateKey().getEncoded();
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
 
+    public static Cipher createCipher(int mode, byte[] key) throws IOException {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
             SecretKeySpec aesKey = new SecretKeySpec(key, "AES");
             byte[] iv = Arrays.copyOfRange(sha256.digest(key), 0, 16);
             IvParameterSpec aesIv = new IvParameterSpec(iv);
 
             Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, aesKey, aesIv);
-            eContent = cipher.doFinal(src);
+            cipher.init(mode, aesKey, aesIv);
+            return cipher;
         } catch (Exception ex) {
             throw new IOException(ex);
         }
+    }
+
+    public static ByteBuffer encodeHeader(byte[] key, int contentLength) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(HEADER_MAGIC);
+        header.putInt(1);
+        header.putInt(0);
+        header.put(key);
+        header.putInt(contentLength);
+        header.flip();
+        return header;
+    }
+
+    public static ByteBuffer encodeChunkedHeader(byte[] key, long plainLength) {
+        ByteBuffer header = ByteBuffer.allocate(CHUNKED_HEADER_LENGTH);
+        header.put(HEADER_MAGIC);
+        header.putInt(CHUNKED_VERSION);
+        header.putInt(0);
+        header.put(key);
+        header.putInt(CHUNK_SIZE);
+        header.putLong(plainLength);
+        header.flip();
+        return header;
+    }
 
-        try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(target))) {
-            DataOutputStream dos = new DataOutputStream(bos);
-            dos.write("ZBXNMB10".getBytes(StandardCharsets.UTF_8));
-            dos.writeInt(1);
-            dos.writeInt(0);
-            dos.write(key);
-            dos.writeInt(eContent.length);
-            dos.write(eContent);
+    public static Cipher createChunkCipher() throws IOException {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /** Sets up the cipher for one chunk of a version 2 file. The associated data is already passed in. */
+    public static void initChunkCipher(Cipher cipher, int mode, SecretKeySpec key,
+                                       long chunkIndex, boolean lastChunk) throws IOException {
+        byte[] iv = ByteBuffer.allocate(12).putInt(0).putLong(chunkIndex).array();
+        try {
+            cipher.init(mode, key, new GCMParameterSpec(CHUNK_TAG_LENGTH * 8, iv));
+            cipher.updateAAD(new byte[] { (byte)(lastChunk ? 1 : 0) });
+        } catch (Exception ex) {
+            throw new IOException(ex);
         }
     }
 
     public static void encryptIfRaw(File target) throws IOException {
-        byte[] src;
+        File tempFile = new File(target.getPath() + ".rpu_tmp");
         try (FileInputStream fis = new FileInputStream(target)) {
             if (isEncrypted(fis)) return;
-            src = IOUtils.toByteArray(fis);
+            writeEncrypted(fis, tempFile);
+        }
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static class RegionInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+        private final boolean ownsChannel;
+
+        RegionInputStream(FileChannel channel, long offset, long length, boolean ownsChannel) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + length;
+            this.ownsChannel = ownsChannel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : Byte.toUnsignedInt(single[0]);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) return -1;
+            if (len == 0) return 0;
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n < 0) throw new EOFException("Region is truncated");
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (ownsChannel) channel.close();
+        }
+    }
+
+    private static class DecryptingInputStream extends InputStream {
+
+        private static final int CHUNK_SIZE = 65536;
+
+        private final InputStream source;
+        private final Cipher cipher;
+        private long remaining;
+
+        private final byte[] inBuffer = new byte[CHUNK_SIZE];
+        private final byte[] outBuffer;
+        private int outPos = 0, outLimit = 0;
+        private boolean finished = false;
+
+        DecryptingInputStream(InputStream source, Cipher cipher, long length) {
+            this.source = source;
+            this.cipher = cipher;
+            this.remaining = length;
+            this.outBuffer = new byte[cipher.getOutputSize(CHUNK_SIZE)];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : Byte.toUnsignedInt(single[0]);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (outPos >= outLimit) {
+                if (finished) return -1;
+                fill();
+            }
+            int n = Math.min(len, outLimit - outPos);
+            System.arraycopy(outBuffer, outPos, b, off, n);
+            outPos += n;
+            return n;
+        }
+
+        private void fill() throws IOException {
+            try {
+                if (remaining > 0) {
+                    int n = source.read(inBuffer, 0, (int) Math.min(inBuffer.length, remaining));
+                    if (n < 0) throw new EOFException("Encrypted content is truncated");
+                    remaining -= n;
+                    outLimit = cipher.update(inBuffer, 0, n, outBuffer);
+                } else {
+                    outLimit = cipher.doFinal(outBuffer, 0);
+                    finished = true;
+                }
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+            outPos = 0;
+        }
+
+        @Override
+        public int available() {
+            return outLimit - outPos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
         }
-        writeEncrypted(src, target);
     }
 }
@@ -0,0 +1,159 @@
+package cn.zbx1425.resourcepackupdater.drm;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to the plain content of a version 2 encrypted file. Only the chunks covering
+ * what is read get decrypted, and the last one is kept for the reads that follow.
+ */
+public class ChunkedAssetFile implements Closeable {
+
+    private final FileChannel channel;
+    private final long baseOffset;
+    private final boolean ownsChannel;
+    private final SecretKeySpec key;
+    private final int chunkSize;
+    private final long plainLength;
+    private final long chunkCount;
+    private final Cipher cipher;
+
+    private final byte[] chunkCiphertext;
+    private final byte[] chunkPlaintext;
+    private long cachedChunkIndex = -1;
+    private int cachedChunkLength;
+
+    private ChunkedAssetFile(FileChannel channel, long baseOffset, boolean ownsChannel,
+                             byte[] key, int chunkSize, long plainLength) throws IOException {
+        this.channel = channel;
+        this.baseOffset = baseOffset;
+        this.ownsChannel = ownsChannel;
+        this.key = new SecretKeySpec(key, "AES");
+        this.chunkSize = chunkSize;
+        this.plainLength = plainLength;
+        this.chunkCount = plainLength == 0 ? 1 : (plainLength + chunkSize - 1) / chunkSize;
+        this.cipher = AssetEncryption.createChunkCipher();
+        this.chunkCiphertext = new byte[chunkSize + AssetEncryption.CHUNK_TAG_LENGTH];
+        this.chunkPlaintext = new byte[chunkSize];
+    }
+
+    /** Reads the header of a version 2 file. The returned object owns the channel and closes it. */
+    public static ChunkedAssetFile open(FileChannel channel) throws IOException {
+        return open(channel, 0, channel.size(), true);
+    }
+
+    /**
+     * Reads the header of a version 2 file stored in the given region of a larger file.
+     * The channel is closed along with the returned object only if it owns it.
+     */
+    public static ChunkedAssetFile open(FileChannel channel, long offset, long length, boolean ownsChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(AssetEncryption.CHUNKED_HEADER_LENGTH);
+        readFully(channel, header, offset);
+        header.flip();
+        header.position(8);
+        if (header.getInt() != AssetEncryption.CHUNKED_VERSION) throw new IOException("Not a chunked encrypted file");
+        header.getInt();
+        byte[] key = new byte[32];
+        header.get(key);
+        int chunkSize = header.getInt();
+        long plainLength = header.getLong();
+        if (chunkSize <= 0 || chunkSize > 16 * 1024 * 1024 || plainLength < 0) {
+            throw new IOException("Invalid chunked encrypted file header");
+        }
+        ChunkedAssetFile file = new ChunkedAssetFile(channel, offset, ownsChannel, key, chunkSize, plainLength);
+        long expectedSize = AssetEncryption.CHUNKED_HEADER_LENGTH + plainLength
+                + file.chunkCount * AssetEncryption.CHUNK_TAG_LENGTH;
+        if (length < expectedSize) throw new EOFException("Encrypted content is truncated");
+        return file;
+    }
+
+    /** Length of the plain content. */
+    public long size() {
+        return plainLength;
+    }
+
+    /** Reads plain content at the given position, returns -1 at the end. */
+    public synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+        if (position >= plainLength) return -1;
+        if (len == 0) return 0;
+        long chunkIndex = position / chunkSize;
+        loadChunk(chunkIndex);
+        int chunkOffset = (int) (position - chunkIndex * chunkSize);
+        int n = Math.min(len, cachedChunkLength - chunkOffset);
+        System.arraycopy(chunkPlaintext, chunkOffset, b, off, n);
+        return n;
+    }
+
+    private void loadChunk(long chunkIndex) throws IOException {
+        if (chunkIndex == cachedChunkIndex) return;
+        boolean lastChunk = chunkIndex == chunkCount - 1;
+        int plainChunkLength = lastChunk ? (int) (plainLength - chunkIndex * chunkSize) : chunkSize;
+        ByteBuffer ciphertext = ByteBuffer.wrap(chunkCiphertext, 0, plainChunkLength + AssetEncryption.CHUNK_TAG_LENGTH);
+        readFully(channel, ciphertext, baseOffset + AssetEncryption.CHUNKED_HEADER_LENGTH
+                + chunkIndex * (chunkSize + AssetEncryption.CHUNK_TAG_LENGTH));
+        AssetEncryption.initChunkCipher(cipher, Cipher.DECRYPT_MODE, key, chunkIndex, lastChunk);
+        cachedChunkIndex = -1;
+        try {
+            cachedChunkLength = cipher.doFinal(chunkCiphertext, 0, ciphertext.limit(), chunkPlaintext, 0);
+        } catch (Exception ex) {
+            throw new IOException("Chunk " + chunkIndex + " of encrypted file is damaged", ex);
+        }
+        cachedChunkIndex = chunkIndex;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) throw new EOFException("Encrypted content is truncated");
+            position += n;
+        }
+    }
+
+    /** A stream over the plain content, which also closes this file when closed. Skipping does not decrypt. */
+    public InputStream newInputStream() {
+        return new InputStream() {
+            private long position = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : Byte.toUnsignedInt(single[0]);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = ChunkedAssetFile.this.read(position, b, off, len);
+                if (n > 0) position += n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, plainLength - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, plainLength - position);
+            }
+
+            @Override
+            public void close() throws IOException {
+                ChunkedAssetFile.this.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsChannel) channel.close();
+    }
+}
@@ -0,0 +1,63 @@
+package cn.zbx1425.resourcepackupdater.drm;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encrypts content of unknown length into the chunks of a version 2 file, to be written after its header.
+ * Used like a Cipher: update() returns the chunks completed so far, doFinal() the rest.
+ */
+public class ChunkedEncryptor {
+
+    private final SecretKeySpec key;
+    private final Cipher cipher;
+
+    private final byte[] chunk = new byte[AssetEncryption.CHUNK_SIZE];
+    private int chunkLength = 0;
+    private long chunkIndex = 0;
+    private long plainLength = 0;
+
+    public ChunkedEncryptor(byte[] key) throws IOException {
+        this.key = new SecretKeySpec(key, "AES");
+        this.cipher = AssetEncryption.createChunkCipher();
+    }
+
+    public byte[] update(byte[] b, int off, int len) throws IOException {
+        plainLength += len;
+        int chunksToSeal = (chunkLength + len - 1) / chunk.length;
+        ByteBuffer output = ByteBuffer.allocate(chunksToSeal * (chunk.length + AssetEncryption.CHUNK_TAG_LENGTH));
+        while (len > 0) {
+            // A full chunk is sealed only once more content arrives, as until then it may be the last one
+            if (chunkLength == chunk.length) sealChunk(false, output);
+            int n = Math.min(len, chunk.length - chunkLength);
+            System.arraycopy(b, off, chunk, chunkLength, n);
+            chunkLength += n;
+            off += n;
+            len -= n;
+        }
+        return output.array();
+    }
+
+    public byte[] doFinal() throws IOException {
+        ByteBuffer output = ByteBuffer.allocate(chunkLength + AssetEncryption.CHUNK_TAG_LENGTH);
+        sealChunk(true, output);
+        return output.array();
+    }
+
+    public long getPlainLength() {
+        return plainLength;
+    }
+
+    private void sealChunk(boolean lastChunk, ByteBuffer output) throws IOException {
+        AssetEncryption.initChunkCipher(cipher, Cipher.ENCRYPT_MODE, key, chunkIndex, lastChunk);
+        try {
+            output.position(output.position() + cipher.doFinal(chunk, 0, chunkLength, output.array(), output.position()));
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+        chunkIndex++;
+        chunkLength = 0;
+    }
+}
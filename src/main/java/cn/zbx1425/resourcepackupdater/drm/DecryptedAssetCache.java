@@ -0,0 +1,89 @@
+package cn.zbx1425.resourcepackupdater.drm;
+
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps the decrypted content of recently read encrypted assets, so that reloading resources again
+ * does not decrypt them again. Bounded by decryptedAssetCacheMiB, off when that is 0.
+ * <p>
+ * An entry is used only while the file still has the mtime, size and file key it was read with, the same check
+ * HashCache relies on. The Dispatcher also clears the cache whenever it is about to change the pack folder.
+ */
+public class DecryptedAssetCache {
+
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private static long totalBytes = 0;
+
+    private static class Entry {
+
+        final byte[] content;
+        final long mTime;
+        final long size;
+        final Object fileKey;
+
+        Entry(byte[] content, BasicFileAttributes attributes) {
+            this.content = content;
+            this.mTime = attributes.lastModifiedTime().toMillis();
+            this.size = attributes.size();
+            this.fileKey = attributes.fileKey();
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return mTime == attributes.lastModifiedTime().toMillis() && size == attributes.size()
+                    && Objects.equals(fileKey, attributes.fileKey());
+        }
+    }
+
+    /** Opens the plain content of an asset, like AssetEncryption.wrapInputStream does. */
+    public static InputStream open(File file) throws IOException {
+        long capacity = ResourcePackUpdater.CONFIG.decryptedAssetCacheMiB.value * 1024L * 1024L;
+        if (capacity <= 0) return AssetEncryption.wrapInputStream(new FileInputStream(file));
+
+        String key = file.getPath();
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.matches(attributes)) return new ByteArrayInputStream(entry.content);
+        }
+
+        FileInputStream fis = new FileInputStream(file);
+        // Plain files gain nothing, and a few large ones (such as music) would push out everything else
+        if (!AssetEncryption.isEncrypted(fis) || attributes.size() > capacity / 4) {
+            return AssetEncryption.wrapInputStream(fis);
+        }
+        byte[] content;
+        try (InputStream inputStream = AssetEncryption.wrapInputStream(fis)) {
+            content = inputStream.readAllBytes();
+        }
+        synchronized (entries) {
+            Entry previous = entries.put(key, new Entry(content, attributes));
+            if (previous != null) totalBytes -= previous.content.length;
+            totalBytes += content.length;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (totalBytes > capacity && iterator.hasNext()) {
+                totalBytes -= iterator.next().content.length;
+                iterator.remove();
+            }
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+    public static void clear() {
+        synchronized (entries) {
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+}
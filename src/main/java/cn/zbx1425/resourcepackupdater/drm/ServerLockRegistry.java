@@ -10,12 +10,13 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 public class ServerLockRegistry {
 
-    public static boolean lockAllSyncedPacks = true;
+    public static volatile boolean lockAllSyncedPacks = true;
 
     private static String localServerLock;
 
@@ -30,9 +31,12 @@ public class ServerLockRegistry {
             return;
         }
         try {
-            JsonObject metaObj = ResourcePackUpdater.JSON_PARSER.parse(IOUtils.toString(
-                    AssetEncryption.wrapInputStream(new FileInputStream(rpFolder.toPath().resolve("pack.mcmeta").toFile()))
-                    , StandardCharsets.UTF_8)).getAsJsonObject();
+            JsonObject metaObj;
+            try (InputStream inputStream = AssetEncryption.wrapInputStream(
+                    new FileInputStream(rpFolder.toPath().resolve("pack.mcmeta").toFile()))) {
+                metaObj = ResourcePackUpdater.JSON_PARSER.parse(IOUtils.toString(inputStream, StandardCharsets.UTF_8))
+                        .getAsJsonObject();
+            }
             if (metaObj.has("zbx_rpu_server_lock")) {
                 localServerLock = metaObj.get("zbx_rpu_server_lock").getAsString();
                 if (!serverLockPrefetched) {
@@ -65,7 +69,7 @@ public class ServerLockRegistry {
     }
 
     public static void onAfterSetServerLock() {
-        if (lockAllSyncedPacks) {
+        if (lockAllSyncedPacks && !ResourcePackUpdater.isSyncingInBackground()) {
             Minecraft.getInstance().getToasts().addToast(new SystemToast(SystemToast.SystemToastIds.PACK_LOAD_FAILURE,
                     Text.literal("同步資源包不完整而未被采用"), Text.literal("您可按 F3+T 重試下載。如有錯誤請聯絡管理人員。")
             ));
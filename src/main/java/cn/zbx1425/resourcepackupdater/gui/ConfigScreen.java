@@ -3,6 +3,7 @@ package cn.zbx1425.resourcepackupdater.gui;
 import cn.zbx1425.resourcepackupdater.Config;
 import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
 import cn.zbx1425.resourcepackupdater.gui.gl.GlHelper;
+import cn.zbx1425.resourcepackupdater.io.network.ConcurrencyController;
 import cn.zbx1425.resourcepackupdater.mappings.Text;
 import com.mojang.blaze3d.systems.RenderSystem;
 import com.mojang.blaze3d.vertex.PoseStack;
@@ -88,6 +89,12 @@ public class ConfigScreen extends Screen {
             RenderSystem.setShaderTexture(0, GlProgressScreen.PRELOAD_HEADER_TEXTURE);
             blit(matrices, 10, 10, 256, 16, 0, 0, 512, 32, 512, 32);
             this.font.drawShadow(matrices, "Source Servers:", 20, 76, 0xFFFFFFFF);
+            int rightColumnX = 10 + (width - 20) / 2 + 10;
+            this.font.drawShadow(matrices, String.format("Download Connections: %d - %d",
+                    ResourcePackUpdater.CONFIG.minDownloadConcurrency.value, ResourcePackUpdater.CONFIG.maxDownloadConcurrency.value),
+                    rightColumnX, 76, 0xFFFFFFFF);
+            this.font.drawShadow(matrices, "Last Used: " + (ConcurrencyController.lastConcurrency == 0
+                    ? "N/A" : Integer.toString(ConcurrencyController.lastConcurrency)), rightColumnX, 90, 0xFFFFFFFF);
             this.font.drawShadow(matrices, "https://www.zbx1425.cn", 20, height - 40, 0xFFFFFFFF);
             super.render(matrices, mouseX, mouseY, delta);
         }
@@ -0,0 +1,87 @@
+package cn.zbx1425.resourcepackupdater.gui;
+
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+import cn.zbx1425.resourcepackupdater.io.ProgressReceiver;
+import cn.zbx1425.resourcepackupdater.mappings.Text;
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.PoseStack;
+import net.minecraft.client.gui.Font;
+import net.minecraft.client.gui.GuiComponent;
+import net.minecraft.client.gui.components.toasts.Toast;
+import net.minecraft.client.gui.components.toasts.ToastComponent;
+import net.minecraft.client.renderer.GameRenderer;
+
+/**
+ * Shows a sync running in the background as a toast, in place of the full-screen GlProgressScreen.
+ * Any thread may report to it; it only keeps the latest state, which the toast component draws each frame.
+ */
+public class SyncProgressToast implements Toast, ProgressReceiver {
+
+    private static final long LINGER_MILLIS = 5000;
+
+    private volatile String status = "";
+    private volatile float progress = 0;
+    private volatile boolean finished = false;
+    private volatile boolean failed = false;
+    private long finishedAt = -1;
+
+    @Override
+    public void printLog(String line) {
+        ResourcePackUpdater.LOGGER.info(line);
+        if (!line.isEmpty()) status = line;
+    }
+
+    @Override
+    public void printLogOutsidePolling(String line) {
+        printLog(line);
+    }
+
+    @Override
+    public void amendLastLog(String postfix) {
+        status = status + postfix;
+    }
+
+    @Override
+    public void setProgress(float primary, float secondary) {
+        progress = primary;
+    }
+
+    @Override
+    public void setInfo(String aux1, String aux2) {
+        // Too little room for file names, the log line already tells the step
+    }
+
+    @Override
+    public void setException(Exception exception) {
+        ResourcePackUpdater.LOGGER.error("Resource Update Exception", exception);
+        status = exception.getMessage() != null ? exception.getMessage() : exception.toString();
+        failed = true;
+    }
+
+    /** Called once the sync is over, the toast then stays for a few seconds. */
+    public void finish() {
+        if (!failed) progress = 1;
+        finished = true;
+    }
+
+    @Override
+    public Visibility render(PoseStack poseStack, ToastComponent toastComponent, long timeSinceLastVisible) {
+        RenderSystem.setShader(GameRenderer::getPositionTexShader);
+        RenderSystem.setShaderTexture(0, TEXTURE);
+        RenderSystem.setShaderColor(1.0f, 1.0f, 1.0f, 1.0f);
+        toastComponent.blit(poseStack, 0, 0, 0, 64, width(), height());
+
+        Font font = toastComponent.getMinecraft().font;
+        String title = failed ? "Resource Pack Sync Failed" : finished ? "Resource Pack Synced" : "Syncing Resource Pack";
+        font.draw(poseStack, Text.literal(title), 18, 7, failed ? 0xFFFF5555 : 0xFFFFFF00);
+        font.draw(poseStack, Text.literal(font.plainSubstrByWidth(status, width() - 24)), 18, 18, 0xFFFFFFFF);
+
+        int barWidth = (int) ((width() - 8) * Math.min(Math.max(progress, 0), 1));
+        GuiComponent.fill(poseStack, 4, height() - 4, width() - 4, height() - 3, 0xFF333333);
+        GuiComponent.fill(poseStack, 4, height() - 4, 4 + barWidth, height() - 3, failed ? 0xFFFF5555 : 0xFF55FF55);
+
+        if (!finished) return Visibility.SHOW;
+        if (finishedAt < 0) finishedAt = timeSinceLastVisible;
+        return timeSinceLastVisible - finishedAt < LINGER_MILLIS ? Visibility.SHOW : Visibility.HIDE;
+    }
+}
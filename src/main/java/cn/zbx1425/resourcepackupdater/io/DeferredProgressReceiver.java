@@ -0,0 +1,57 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import cn.zbx1425.resourcepackupdater.gui.gl.GlHelper;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Lets work on a background thread report progress. Logs are queued and the latest progress and info kept,
+ * until the thread that owns the GL context replays them onto the real receiver.
+ */
+public class DeferredProgressReceiver implements ProgressReceiver {
+
+    private final ConcurrentLinkedQueue<Consumer<ProgressReceiver>> pendingLogs = new ConcurrentLinkedQueue<>();
+    private volatile float[] progress;
+    private volatile String[] info;
+
+    @Override
+    public void printLog(String line) {
+        pendingLogs.add(cb -> cb.printLog(line));
+    }
+
+    @Override
+    public void printLogOutsidePolling(String line) {
+        pendingLogs.add(cb -> cb.printLogOutsidePolling(line));
+    }
+
+    @Override
+    public void amendLastLog(String postfix) {
+        pendingLogs.add(cb -> cb.amendLastLog(postfix));
+    }
+
+    @Override
+    public void setProgress(float primary, float secondary) {
+        progress = new float[] { primary, secondary };
+    }
+
+    @Override
+    public void setInfo(String aux1, String aux2) {
+        info = new String[] { aux1, aux2 };
+    }
+
+    @Override
+    public void setException(Exception exception) {
+        // Reported by whoever waits for the work, when it rethrows the exception
+    }
+
+    /** Replays what was reported since the last call. Must be called on the thread that owns the GL context. */
+    public void flushTo(ProgressReceiver cb) throws GlHelper.MinecraftStoppingException {
+        Consumer<ProgressReceiver> log;
+        while ((log = pendingLogs.poll()) != null) log.accept(cb);
+        float[] currentProgress = progress;
+        if (currentProgress != null) cb.setProgress(currentProgress[0], currentProgress[1]);
+        String[] currentInfo = info;
+        if (currentInfo != null) cb.setInfo(currentInfo[0], currentInfo[1]);
+    }
+}
@@ -2,11 +2,16 @@ package cn.zbx1425.resourcepackupdater.io;
 
 import cn.zbx1425.resourcepackupdater.Config;
 import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+import cn.zbx1425.resourcepackupdater.drm.DecryptedAssetCache;
 import cn.zbx1425.resourcepackupdater.gui.gl.GlHelper;
 import cn.zbx1425.resourcepackupdater.gui.GlProgressScreen;
+import cn.zbx1425.resourcepackupdater.io.network.ArchiveExtractor;
 import cn.zbx1425.resourcepackupdater.io.network.DownloadDispatcher;
 import cn.zbx1425.resourcepackupdater.io.network.DownloadTask;
+import cn.zbx1425.resourcepackupdater.io.network.MirrorPool;
+import cn.zbx1425.resourcepackupdater.io.network.MirrorSelector;
 import cn.zbx1425.resourcepackupdater.io.network.PackOutputStream;
+import cn.zbx1425.resourcepackupdater.io.network.PatchApplier;
 import cn.zbx1425.resourcepackupdater.io.network.RemoteMetadata;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
@@ -15,48 +20,95 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 public class Dispatcher {
 
     private RemoteMetadata remoteMetadata;
     private LocalMetadata localMetadata;
+    private List<MirrorSelector.ProbeResult> probeResults;
 
-    public boolean runSync(String baseDir, Config.SourceProperty source, ProgressReceiver cb) throws Exception {
+    private static PackWatcher packWatcher;
+
+    public boolean runSync(String baseDir, Config.SourceProperty selectedSource, ProgressReceiver cb) throws Exception {
         try {
-            if (source.baseUrl.isEmpty()) {
+            if (selectedSource.baseUrl.isEmpty()) {
                 throw new IOException("There is no source configured. Install the config file to your config folder!");
             }
 
             cb.printLog("Resource Pack Updater v" + ResourcePackUpdater.MOD_VERSION + " (C) Zbx1425, www.zbx1425.cn");
+            Config.SourceProperty source =
+                    ResourcePackUpdater.CONFIG.autoSelectSource.value && ResourcePackUpdater.CONFIG.sourceList.value.size() > 1
+                    ? selectFastestSource(selectedSource, cb) : selectedSource;
             cb.printLog("Server: " + source.baseUrl);
             cb.printLog("Target: " + baseDir);
             cb.printLog("");
 
-            localMetadata = new LocalMetadata(baseDir);
             remoteMetadata = new RemoteMetadata(source.baseUrl);
 
-            byte[] remoteChecksum = null;
-
-            if (source.hasDirHash) {
-                cb.printLog("Downloading remote directory checksum ...");
-                remoteChecksum = remoteMetadata.fetchDirChecksum(cb);
-                cb.amendLastLog("Done");
-                cb.printLog("Remote directory checksum is " + Hex.encodeHexString(remoteChecksum));
+            boolean rescan = packWatcher != null && packWatcher.localMetadata.baseDir.equals(baseDir) && packWatcher.isClean();
+            if (rescan) {
+                localMetadata = packWatcher.localMetadata;
             } else {
-                cb.printLog("This server does not have a directory checksum.");
-                cb.printLog("Downloading remote metadata ...");
-                remoteMetadata.fetch(cb);
-                cb.amendLastLog("Done");
+                stopWatching();
+                localMetadata = new LocalMetadata(baseDir);
+            }
+            // A scan without hashes to go by reads every file and takes the longest, and an empty folder
+            // needs the full metadata in any case, so then it is fetched right along with the checksum.
+            boolean fetchFullMetadata = !source.hasDirHash || (!rescan && !localMetadata.hasHashCache());
+
+            // The remote side is fetched in the background while the local files are scanned,
+            // its messages are shown on this thread once the scan is through.
+            DeferredProgressReceiver fetchCb = new DeferredProgressReceiver();
+            ExecutorService fetchExecutor = Executors.newSingleThreadExecutor();
+            byte[] remoteChecksum;
+            try {
+                Future<byte[]> remoteFetch = fetchExecutor.submit(() -> {
+                    byte[] checksum = null;
+                    if (source.hasDirHash) {
+                        fetchCb.printLog("Downloading remote directory checksum ...");
+                        checksum = remoteMetadata.fetchDirChecksum(fetchCb);
+                        fetchCb.amendLastLog("Done");
+                        fetchCb.printLog("Remote directory checksum is " + Hex.encodeHexString(checksum));
+                    } else {
+                        fetchCb.printLog("This server does not have a directory checksum.");
+                    }
+                    if (fetchFullMetadata) {
+                        fetchCb.printLog("Downloading remote metadata ...");
+                        remoteMetadata.fetch(fetchCb);
+                        fetchCb.amendLastLog("Done");
+                    }
+                    return checksum;
+                });
+
+                if (rescan) {
+                    Set<String> changedPaths = packWatcher.drainChangedPaths();
+                    cb.printLog(String.format("Rescanning %d changed local paths ...", changedPaths.size()));
+                    localMetadata.rescanPaths(changedPaths, cb);
+                    cb.amendLastLog("Done");
+                } else {
+                    cb.printLog("Scanning local files ...");
+                    // The encryption switch is not known yet, scanDir does not act on it for now
+                    localMetadata.scanDir(false, cb);
+                    cb.amendLastLog("Done");
+                }
+
+                remoteChecksum = waitForBackgroundWork(remoteFetch, fetchCb, cb);
                 cb.setProgress(0, 0);
+            } finally {
+                fetchExecutor.shutdownNow();
             }
-            // Now, either checksum or full metadata is fetched, with the encryption switch.
+            // Now, the checksum, the full metadata or both are fetched, with the encryption switch.
 
-            cb.printLog("Scanning local files ...");
-            localMetadata.scanDir(remoteMetadata.encrypt, cb);
-            cb.amendLastLog("Done");
             byte[] localChecksum = localMetadata.getDirChecksum();
             cb.printLog("Local directory checksum is " + Hex.encodeHexString(localChecksum));
 
@@ -66,17 +118,24 @@ public class Dispatcher {
             }
             if (remoteChecksum != null) {
                 if (Arrays.equals(localChecksum, remoteChecksum)) {
+                    if (packWatcher == null) startWatching();
+                    updatePackBlob(baseDir, cb);
+                    publishListing(baseDir);
                     cb.printLog("All files are up to date.");
                     cb.setProgress(1, 1);
                     cb.printLog("");
                     cb.printLog("Done! Thank you.");
                     return true;
-                } else {
-                    // We haven't fetched the full metadata yet, do it now.
-                    cb.printLog("Downloading remote metadata ...");
-                    remoteMetadata.fetch(cb);
-                    cb.amendLastLog("Done");
-                    cb.setProgress(0, 0);
+                } else if (!fetchFullMetadata) {
+                    if (remoteMetadata.treeRoot != null && !localMetadata.files.isEmpty() && fetchChangedDirectories(cb)) {
+                        cb.setProgress(0, 0);
+                    } else {
+                        // We haven't fetched the full metadata yet, do it now.
+                        cb.printLog("Downloading remote metadata ...");
+                        remoteMetadata.fetch(cb);
+                        cb.amendLastLog("Done");
+                        cb.setProgress(0, 0);
+                    }
                 }
             }
 
@@ -90,36 +149,138 @@ public class Dispatcher {
             cb.printLog(String.format("Found %-3d new files, %-3d to update, %-3d to delete.",
                     filesToCreate.size(), filesToUpdate.size(), filesToDelete.size()));
 
-            cb.printLog("Creating & deleting directories and files ...");
-            for (String dir : dirsToCreate) {
-                Files.createDirectories(Paths.get(baseDir, dir));
+            // The folder is about to change, so no watcher (of this or another game instance) can trust its journal
+            stopWatching();
+            PackWatcher.invalidate(baseDir);
+            DecryptedAssetCache.clear();
+            PackBlob.delete(baseDir);
+            PackListing.invalidate();
+            ObjectStore objectStore = ResourcePackUpdater.CONFIG.useObjectStore.value
+                    ? new ObjectStore(ResourcePackUpdater.CONFIG.getObjectStoreDir()) : null;
+            if (objectStore != null) {
+                // What is about to be replaced or deleted is kept, for when another source or variant has it again
+                List<String> filesToKeep = Stream.concat(filesToUpdate.stream(), filesToDelete.stream()).toList();
+                if (!filesToKeep.isEmpty()) {
+                    cb.printLog(String.format("Keeping %d replaced files in the object store ...", filesToKeep.size()));
+                    addToObjectStore(objectStore, baseDir, filesToKeep, localMetadata.files, cb);
+                    cb.amendLastLog("Done");
+                }
             }
+            // Deleted before anything is written: on a case-insensitive file system a local "Foo.png" to delete
+            // is the same file as a remote "foo.png" to write, and deleting it afterwards would lose the new one.
+            cb.printLog("Deleting directories and files ...");
             for (String file : filesToDelete) {
                 Files.deleteIfExists(Paths.get(baseDir, file));
             }
             for (String dir : dirsToDelete) {
-                Path dirPath = Paths.get(baseDir, dir);
-                if (Files.isDirectory(dirPath)) FileUtils.deleteDirectory(dirPath.toFile());
+                deleteDirectory(baseDir, dir);
+            }
+            cb.amendLastLog("Done");
+            cb.printLog("Creating directories ...");
+            for (String dir : dirsToCreate) {
+                Files.createDirectories(Paths.get(baseDir, dir));
             }
             cb.amendLastLog("Done");
 
             remoteMetadata.beginDownloads(cb);
+            List<String> filesToDownload = Stream.concat(filesToCreate.stream(), filesToUpdate.stream()).toList();
+            List<String> filesToRestoreLater = List.of();
+            if (objectStore != null && !filesToDownload.isEmpty()) {
+                cb.printLog("Restoring files from the object store ...");
+                List<String> filesNotStored = new ArrayList<>();
+                filesToRestoreLater = new ArrayList<>();
+                Set<String> hashesToFetch = new HashSet<>();
+                int restoredFiles = 0;
+                for (int i = 0; i < filesToDownload.size(); i++) {
+                    String file = filesToDownload.get(i);
+                    byte[] hash = remoteMetadata.files.getHash(file);
+                    if (restoreFromObjectStore(objectStore, baseDir, file, hash)) {
+                        restoredFiles++;
+                    } else if (hashesToFetch.add(Hex.encodeHexString(hash))) {
+                        filesNotStored.add(file);
+                    } else {
+                        // Same content as a file fetched anyway, which puts it in the store
+                        filesToRestoreLater.add(file);
+                    }
+                    if (i % 100 == 0) cb.setProgress(i, filesToDownload.size());
+                }
+                cb.amendLastLog("Done");
+                cb.setProgress(0, 0);
+                filesToDownload = filesNotStored;
+                cb.printLog(String.format("Restored %d files from the object store, %d left to download.",
+                        restoredFiles, filesToDownload.size()));
+            }
+            List<String> filesToFetch = filesToDownload;
+            Set<String> filesToFetchSet = new HashSet<>(filesToFetch);
+            PatchApplier patchApplier = new PatchApplier(remoteMetadata, baseDir, localMetadata.hashCache);
+            List<String> filesToPatch = patchApplier.getPatchableFiles(
+                    filesToUpdate.stream().filter(filesToFetchSet::contains).toList(), localMetadata.files);
+            if (!filesToPatch.isEmpty()) {
+                cb.printLog(String.format("Patching %d files ...", filesToPatch.size()));
+                patchApplier.applyAll(filesToPatch, localMetadata.files, cb);
+                cb.amendLastLog("Done");
+                remoteMetadata.downloadedBytes += patchApplier.downloadedBytes;
+                filesToDownload = filesToDownload.stream()
+                        .filter(file -> !patchApplier.patchedFiles.contains(file)).toList();
+                cb.printLog(String.format("Patched %d files, %d left to download.",
+                        patchApplier.patchedFiles.size(), filesToDownload.size()));
+            }
+            if (source.hasArchive && shouldUseArchive(filesToDownload.size())) {
+                cb.printLog("Downloading and extracting archive ...");
+                ArchiveExtractor archiveExtractor = new ArchiveExtractor(remoteMetadata, baseDir, localMetadata.hashCache);
+                try {
+                    archiveExtractor.extract(new HashSet<>(filesToDownload), cb);
+                    cb.amendLastLog("Done");
+                } catch (IOException ex) {
+                    cb.printLog("Archive download failed, falling back to individual files: " + ex);
+                }
+                remoteMetadata.downloadedBytes += archiveExtractor.downloadedBytes;
+                filesToDownload = filesToDownload.stream()
+                        .filter(file -> !archiveExtractor.extractedFiles.contains(file)).toList();
+                cb.printLog(String.format("Extracted %d files from archive, %d left to download.",
+                        archiveExtractor.extractedFiles.size(), filesToDownload.size()));
+            }
+
+            MirrorPool mirrorPool = new MirrorPool(source.name, remoteMetadata.baseUrl);
+            if (ResourcePackUpdater.CONFIG.mirrorStriping.value && ResourcePackUpdater.CONFIG.sourceList.value.size() > 1
+                    && remoteChecksum != null && !filesToDownload.isEmpty()) {
+                addMirrors(mirrorPool, remoteChecksum, cb);
+            }
             cb.printLog("Downloading files ...");
             DownloadDispatcher downloadDispatcher = new DownloadDispatcher(cb);
-            for (String file : Stream.concat(filesToCreate.stream(), filesToUpdate.stream()).toList()) {
-                DownloadTask task = new DownloadTask(downloadDispatcher,
-                        remoteMetadata.baseUrl + "/dist/" + file, file, remoteMetadata.files.get(file).size);
+            for (String file : filesToDownload) {
+                DownloadTask task = new DownloadTask(downloadDispatcher, mirrorPool,
+                        "/dist/" + file, file, remoteMetadata.files.get(file).size);
                 downloadDispatcher.dispatch(task, () -> new PackOutputStream(Paths.get(baseDir, file),
                         remoteMetadata.encrypt, localMetadata.hashCache, remoteMetadata.files.get(file).hash));
             }
             while (!downloadDispatcher.tasksFinished()) {
                 downloadDispatcher.updateSummary();
-                ((GlProgressScreen)cb).redrawScreen(true);
+                if (cb instanceof GlProgressScreen) ((GlProgressScreen)cb).redrawScreen(true);
                 Thread.sleep(1000 / 30);
             }
             remoteMetadata.downloadedBytes += downloadDispatcher.downloadedBytes;
             downloadDispatcher.close();
+            if (mirrorPool.size() > 1) {
+                for (MirrorPool.Mirror mirror : mirrorPool.getMirrors()) {
+                    cb.printLog(String.format("  %.2f MiB from %s", mirror.getDownloadedBytes() / 1048576.0, mirror.name));
+                }
+            }
+            if (objectStore != null && !filesToFetch.isEmpty()) {
+                cb.printLog(String.format("Adding %d files to the object store ...", filesToFetch.size()));
+                addToObjectStore(objectStore, baseDir, filesToFetch, remoteMetadata.files, cb);
+                for (String file : filesToRestoreLater) {
+                    if (!restoreFromObjectStore(objectStore, baseDir, file, remoteMetadata.files.getHash(file))) {
+                        throw new IOException("Cannot restore " + file + " from the object store");
+                    }
+                }
+                cb.amendLastLog("Done");
+            }
             localMetadata.saveHashCache();
+            localMetadata.adoptRemote(remoteMetadata);
+            startWatching();
+            updatePackBlob(baseDir, cb);
+            publishListing(baseDir);
 
             cb.setInfo("", "");
             cb.setProgress(1, 1);
@@ -130,8 +291,152 @@ public class Dispatcher {
         } catch (GlHelper.MinecraftStoppingException ex) {
             throw ex;
         } catch (Exception ex) {
+            stopWatching();
             cb.setException(ex);
             return false;
         }
     }
+
+    /**
+     * Fetches the metadata of only the directories that differ from the local ones.
+     * Returns false if so many differ that fetching the full metadata is cheaper.
+     */
+    private boolean fetchChangedDirectories(ProgressReceiver cb) throws Exception {
+        cb.printLog("Downloading metadata of changed directories ...");
+        DeferredProgressReceiver treeCb = new DeferredProgressReceiver();
+        ExecutorService treeExecutor = Executors.newSingleThreadExecutor();
+        boolean fetched;
+        try {
+            fetched = waitForBackgroundWork(treeExecutor.submit(() -> remoteMetadata.fetchTree(localMetadata, treeCb)), treeCb, cb);
+        } finally {
+            treeExecutor.shutdownNow();
+        }
+        if (fetched) {
+            cb.amendLastLog("Done");
+        } else {
+            cb.printLog("Too many directories changed, using the full metadata instead.");
+        }
+        return fetched;
+    }
+
+    private Config.SourceProperty selectFastestSource(Config.SourceProperty current, ProgressReceiver cb) throws Exception {
+        Config.SourceProperty selected = MirrorSelector.selectFastest(probeSources(cb), current);
+        if (!selected.equals(current)) {
+            ResourcePackUpdater.CONFIG.selectedSource.value = selected;
+            ResourcePackUpdater.CONFIG.selectedSource.isFromLocal = true;
+        }
+        cb.printLog("Using " + selected.name);
+        return selected;
+    }
+
+    /** Probes all configured sources, once per sync. */
+    private List<MirrorSelector.ProbeResult> probeSources(ProgressReceiver cb) throws Exception {
+        if (probeResults != null) return probeResults;
+        cb.printLog("Probing mirrors ...");
+        List<Config.SourceProperty> sources = ResourcePackUpdater.CONFIG.sourceList.value;
+        DeferredProgressReceiver probeCb = new DeferredProgressReceiver();
+        ExecutorService probeExecutor = Executors.newSingleThreadExecutor();
+        try {
+            probeResults = waitForBackgroundWork(probeExecutor.submit(() -> MirrorSelector.probeAll(sources, probeCb)), probeCb, cb);
+        } finally {
+            probeExecutor.shutdownNow();
+        }
+        return probeResults;
+    }
+
+    /** Adds the sources serving the same directory checksum as the one the metadata came from. */
+    private void addMirrors(MirrorPool mirrorPool, byte[] remoteChecksum, ProgressReceiver cb) throws Exception {
+        for (MirrorSelector.ProbeResult result : probeSources(cb)) {
+            if (Arrays.equals(result.checksum, remoteChecksum)) {
+                mirrorPool.addMirror(result.source.name, result.source.baseUrl, result.bytesPerSecond);
+            }
+        }
+        cb.printLog(String.format("Downloading from %d mirrors: %s", mirrorPool.size(),
+                String.join(", ", mirrorPool.getMirrors().stream().map(mirror -> mirror.name).toList())));
+    }
+
+    /** Adds the given pack files to the object store. Failing to is not fatal, they will just be downloaded again. */
+    private void addToObjectStore(ObjectStore objectStore, String baseDir, List<String> files, FileIndex index, ProgressReceiver cb) {
+        for (int i = 0; i < files.size(); i++) {
+            String file = files.get(i);
+            Path path = Paths.get(baseDir, file);
+            byte[] hash = index.getHash(file);
+            if (hash == null || !Files.isRegularFile(path)) continue;
+            try {
+                objectStore.adopt(path, hash);
+            } catch (IOException ex) {
+                ResourcePackUpdater.LOGGER.warn("Cannot add {} to the object store", file, ex);
+            }
+            if (i % 100 == 0) cb.setProgress(i, files.size());
+        }
+        cb.setProgress(0, 0);
+    }
+
+    private boolean restoreFromObjectStore(ObjectStore objectStore, String baseDir, String file, byte[] hash) {
+        try {
+            return objectStore.materialize(hash, Paths.get(baseDir, file), remoteMetadata.encrypt, localMetadata.hashCache);
+        } catch (IOException ex) {
+            ResourcePackUpdater.LOGGER.warn("Cannot restore {} from the object store", file, ex);
+            return false;
+        }
+    }
+
+    /** Brings the pack blob in line with the folder, or removes it if packed storage is off. */
+    private void updatePackBlob(String baseDir, ProgressReceiver cb) throws IOException {
+        if (!ResourcePackUpdater.CONFIG.packedStorage.value) {
+            PackBlob.delete(baseDir);
+            return;
+        }
+        try {
+            PackBlob.update(baseDir, localMetadata.files, cb);
+        } catch (IOException ex) {
+            // Not fatal, the game reads the folder then
+            ResourcePackUpdater.LOGGER.warn("Cannot pack the files into one file", ex);
+            PackBlob.delete(baseDir);
+        }
+    }
+
+    private void publishListing(String baseDir) {
+        if (ResourcePackUpdater.CONFIG.cachedListing.value) {
+            PackListing.publish(baseDir, localMetadata.files);
+        } else {
+            PackListing.invalidate();
+        }
+    }
+
+    /** Keeps the screen alive and shows what the work reports, until it is done. Rethrows what it threw. */
+    private static <T> T waitForBackgroundWork(Future<T> work, DeferredProgressReceiver workCb, ProgressReceiver cb) throws Exception {
+        while (!work.isDone()) {
+            workCb.flushTo(cb);
+            if (cb instanceof GlProgressScreen) ((GlProgressScreen)cb).redrawScreen(true);
+            Thread.sleep(1000 / 30);
+        }
+        workCb.flushTo(cb);
+        try {
+            return work.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) throw (Exception) ex.getCause();
+            throw ex;
+        }
+    }
+
+    private static void deleteDirectory(String baseDir, String dir) throws IOException {
+        Path dirPath = Paths.get(baseDir, dir);
+        if (Files.isDirectory(dirPath)) FileUtils.deleteDirectory(dirPath.toFile());
+    }
+
+    private void startWatching() {
+        if (ResourcePackUpdater.CONFIG.watchPackDir.value) packWatcher = PackWatcher.start(localMetadata);
+    }
+
+    private static void stopWatching() {
+        if (packWatcher != null) packWatcher.close();
+        packWatcher = null;
+    }
+
+    private boolean shouldUseArchive(int filesToDownload) {
+        if (filesToDownload == 0) return false;
+        if (localMetadata.files.isEmpty()) return true;
+        return filesToDownload * 100L >= (long) remoteMetadata.files.size() * ResourcePackUpdater.CONFIG.archiveThreshold.value;
+    }
 }
@@ -0,0 +1,168 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A path to file property table for tens of thousands of entries. Paths are kept in one sorted array,
+ * hashes packed into a single byte array, and sizes and mtimes in primitive arrays, instead of one
+ * map entry, FileProperty and hash array per file. Lookups are binary searches, and comparing two
+ * indexes is a single merge pass over both.
+ * <p>
+ * Entries are appended in any order and sorted on the first lookup; putting a path twice keeps the later one.
+ */
+public class FileIndex {
+
+    public static final int HASH_LENGTH = 20;
+
+    private String[] paths = new String[0];
+    private byte[] hashes = new byte[0];
+    private long[] sizes = new long[0];
+    private long[] mTimes = new long[0];
+    private int count = 0;
+    private volatile boolean sorted = true;
+
+    public void put(String path, FileProperty property) {
+        put(path, property.hash, property.size, property.mTime);
+    }
+
+    /** A hash that is missing or not a SHA1 is stored as zeros, which never matches a real file. */
+    public synchronized void put(String path, byte[] hash, long size, long mTime) {
+        if (count == paths.length) {
+            int capacity = Math.max(16, count * 2);
+            paths = Arrays.copyOf(paths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity * HASH_LENGTH);
+            sizes = Arrays.copyOf(sizes, capacity);
+            mTimes = Arrays.copyOf(mTimes, capacity);
+        }
+        paths[count] = path;
+        Arrays.fill(hashes, count * HASH_LENGTH, (count + 1) * HASH_LENGTH, (byte) 0);
+        if (hash != null) {
+            System.arraycopy(hash, 0, hashes, count * HASH_LENGTH, Math.min(hash.length, HASH_LENGTH));
+        }
+        sizes[count] = size;
+        mTimes[count] = mTime;
+        count++;
+        sorted = false;
+    }
+
+    public synchronized void clear() {
+        paths = new String[0];
+        hashes = new byte[0];
+        sizes = new long[0];
+        mTimes = new long[0];
+        count = 0;
+        sorted = true;
+    }
+
+    public int size() {
+        ensureSorted();
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int indexOf(String path) {
+        ensureSorted();
+        int index = Arrays.binarySearch(paths, 0, count, path);
+        return index >= 0 ? index : -1;
+    }
+
+    public boolean containsKey(String path) {
+        return indexOf(path) >= 0;
+    }
+
+    /** Returns a FileProperty made for this call, or null if the path is not in the index. */
+    public FileProperty get(String path) {
+        int index = indexOf(path);
+        return index >= 0 ? new FileProperty(getHash(index), mTimes[index], sizes[index]) : null;
+    }
+
+    public byte[] getHash(String path) {
+        int index = indexOf(path);
+        return index >= 0 ? getHash(index) : null;
+    }
+
+    /** Path at the given position, in ascending order. */
+    public String getPath(int index) {
+        ensureSorted();
+        return paths[index];
+    }
+
+    public byte[] getHash(int index) {
+        ensureSorted();
+        return Arrays.copyOfRange(hashes, index * HASH_LENGTH, (index + 1) * HASH_LENGTH);
+    }
+
+    /** Paths in this index that the other one does not have, in ascending order. */
+    public List<String> getPathsNotIn(FileIndex other) {
+        ensureSorted();
+        other.ensureSorted();
+        List<String> result = new ArrayList<>();
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            while (j < other.count && other.paths[j].compareTo(paths[i]) < 0) j++;
+            if (j >= other.count || !other.paths[j].equals(paths[i])) result.add(paths[i]);
+        }
+        return result;
+    }
+
+    /** Paths both indexes have, but with different hashes, in ascending order. */
+    public List<String> getPathsWithDifferentHash(FileIndex other) {
+        ensureSorted();
+        other.ensureSorted();
+        List<String> result = new ArrayList<>();
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            while (j < other.count && other.paths[j].compareTo(paths[i]) < 0) j++;
+            if (j < other.count && other.paths[j].equals(paths[i])
+                    && !Arrays.equals(hashes, i * HASH_LENGTH, (i + 1) * HASH_LENGTH,
+                        other.hashes, j * HASH_LENGTH, (j + 1) * HASH_LENGTH)) {
+                result.add(paths[i]);
+            }
+        }
+        return result;
+    }
+
+    /** Path of the directory containing the given file or directory, "" for the pack root. */
+    public static String getParentPath(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private void ensureSorted() {
+        if (sorted) return;
+        synchronized (this) {
+            if (sorted) return;
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) order[i] = i;
+            // Stable, so of entries with the same path the one put last comes last
+            Arrays.sort(order, Comparator.comparing(i -> paths[i]));
+
+            String[] newPaths = new String[count];
+            byte[] newHashes = new byte[count * HASH_LENGTH];
+            long[] newSizes = new long[count];
+            long[] newMTimes = new long[count];
+            int newCount = 0;
+            for (int k = 0; k < count; k++) {
+                int i = order[k];
+                if (k + 1 < count && paths[order[k + 1]].equals(paths[i])) continue;
+                newPaths[newCount] = paths[i];
+                System.arraycopy(hashes, i * HASH_LENGTH, newHashes, newCount * HASH_LENGTH, HASH_LENGTH);
+                newSizes[newCount] = sizes[i];
+                newMTimes[newCount] = mTimes[i];
+                newCount++;
+            }
+            paths = Arrays.copyOf(newPaths, newCount);
+            hashes = Arrays.copyOf(newHashes, newCount * HASH_LENGTH);
+            sizes = Arrays.copyOf(newSizes, newCount);
+            mTimes = Arrays.copyOf(newMTimes, newCount);
+            count = newCount;
+            sorted = true;
+        }
+    }
+}
@@ -24,8 +24,12 @@ public class FileProperty {
     }
 
     public FileProperty(byte[] hash, long mTime) {
+        this(hash, mTime, 0);
+    }
+
+    public FileProperty(byte[] hash, long mTime, long size) {
         this.hash = hash;
         this.mTime = mTime;
-        this.size = 0;
+        this.size = size;
     }
 }
@@ -4,19 +4,86 @@ import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
+/**
+ * Caches file hashes by path across launches. A cached hash is used only if mtime, size and
+ * (where the file system has one) the file key such as the inode all still match,
+ * which all come from the single attribute read per file the walk already does.
+ * <p>
+ * The cache file (version 3) is: int version, int entry count, int CRC32 of everything after this header,
+ * an int offset per entry, then the entries sorted by their UTF-8 path bytes, each being
+ * int path length, UTF-8 path, long mtime, long size, int file key length, UTF-8 file key, int hash length, hash.
+ * Version 2 lacks size and file key.
+ * It is read in one go and looked up by binary search, so entries are only decoded when a file asks for them.
+ * Saving writes a temporary file and renames it over the old one, so a crash never leaves a half-written cache.
+ */
 public class HashCache {
 
-    public HashMap<String, FileProperty> entries = new HashMap<>();
+    private static final int FORMAT_VERSION = 3;
+    private static final int HEADER_LENGTH = 12;
 
-    public HashMap<String, FileProperty> entriesToSave = new HashMap<>();
+    /** Entries hashed or written in this session, and those from a version 1 cache file. */
+    public ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public ConcurrentHashMap<String, Entry> entriesToSave = new ConcurrentHashMap<>();
 
     private final Path basePath;
-    private boolean isDirty = false;
+    private volatile boolean isDirty = false;
+
+    private ByteBuffer loadedData;
+    private int loadedVersion;
+    private int loadedCount = 0;
+    /** Keys in entries that are not in loadedData as well, so that size() counts each key once. */
+    private final AtomicInteger addedCount = new AtomicInteger(0);
+
+    public static class Entry {
+
+        public final byte[] hash;
+        public final long mTime;
+        /** -1 if the entry comes from a cache file that did not record it. */
+        public final long size;
+        /** String form of BasicFileAttributes.fileKey(), "" if the file system has none. */
+        public final String fileKey;
+
+        public Entry(byte[] hash, long mTime, long size, String fileKey) {
+            this.hash = hash;
+            this.mTime = mTime;
+            this.size = size;
+            this.fileKey = fileKey;
+        }
+
+        public Entry(byte[] hash, BasicFileAttributes attributes) {
+            this(hash, attributes.lastModifiedTime().toMillis(), attributes.size(),
+                    attributes.fileKey() == null ? "" : attributes.fileKey().toString());
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            if (mTime != attributes.lastModifiedTime().toMillis()) return false;
+            if (size != -1 && size != attributes.size()) return false;
+            if (!fileKey.isEmpty() && attributes.fileKey() != null && !fileKey.equals(attributes.fileKey().toString())) return false;
+            return true;
+        }
+
+        int getEncodedLength() {
+            return 8 + 8 + 4 + fileKey.getBytes(StandardCharsets.UTF_8).length + 4 + hash.length;
+        }
+    }
 
     public HashCache(Path basePath) {
         this.basePath = basePath;
@@ -25,70 +92,204 @@ public class HashCache {
     public void load(Path file) throws IOException {
         if (!Files.isRegularFile(file)) return;
         entries.clear();
-        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
-            final int version = stream.readInt();
+        addedCount.set(0);
+        loadedData = null;
+        loadedCount = 0;
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = ByteBuffer.allocate((int) channel.size());
+            while (data.hasRemaining() && channel.read(data) != -1) { }
+            data.flip();
+        }
+        isDirty = false;
+        if (data.remaining() < 4) return;
+        int version = data.getInt(0);
+        if (version == 1) {
+            loadLegacy(data);
+        } else if ((version == 2 || version == FORMAT_VERSION) && data.remaining() >= HEADER_LENGTH) {
+            int entryCount = data.getInt(4);
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate().position(HEADER_LENGTH));
+            // A damaged cache is dropped, which only costs rehashing the files
+            if ((int) crc.getValue() != data.getInt(8) || entryCount < 0
+                    || HEADER_LENGTH + (long) entryCount * 4 > data.limit()) return;
+            loadedData = data;
+            loadedVersion = version;
+            loadedCount = entryCount;
+        }
+    }
+
+    private void loadLegacy(ByteBuffer data) {
+        // Written with DataOutput.writeBytes, so only ASCII paths came out intact
+        try (DataInputStream stream = new DataInputStream(new ByteArrayInputStream(data.array(), 0, data.limit()))) {
+            stream.readInt();
             final int entryCount = stream.readInt();
             for (int i = 0; i < entryCount; ++i) {
                 final int keyLength = stream.readInt();
-                final String key = new String(stream.readNBytes(keyLength));
+                final String key = new String(stream.readNBytes(keyLength), StandardCharsets.ISO_8859_1);
                 final long mTime = stream.readLong();
                 final int hashLength = stream.readInt();
                 final byte[] hash = stream.readNBytes(hashLength);
-                entries.put(key, new FileProperty(hash, mTime));
+                putEntry(key, new Entry(hash, mTime, -1, ""));
             }
+        } catch (IOException ex) {
+            entries.clear();
+            addedCount.set(0);
         }
-        isDirty = false;
     }
 
     public void save(Path file) throws IOException {
         if (!isDirty) return;
-        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
-            stream.writeInt(1);
-            stream.writeInt(entriesToSave.size());
-            for (Map.Entry<String, FileProperty> entry : entriesToSave.entrySet()) {
-                stream.writeInt(entry.getKey().length());
-                stream.writeBytes(entry.getKey());
-                stream.writeLong(entry.getValue().mTime);
-                stream.writeInt(entry.getValue().hash.length);
-                stream.write(entry.getValue().hash);
-            }
+        List<Map.Entry<byte[], Entry>> sortedEntries = new ArrayList<>(entriesToSave.size());
+        for (Map.Entry<String, Entry> entry : entriesToSave.entrySet()) {
+            sortedEntries.add(Map.entry(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue()));
+        }
+        sortedEntries.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+
+        int dataLength = HEADER_LENGTH + sortedEntries.size() * 4;
+        for (Map.Entry<byte[], Entry> entry : sortedEntries) {
+            dataLength += 4 + entry.getKey().length + entry.getValue().getEncodedLength();
+        }
+        ByteBuffer data = ByteBuffer.allocate(dataLength);
+        data.putInt(FORMAT_VERSION).putInt(sortedEntries.size()).putInt(0);
+        int offset = HEADER_LENGTH + sortedEntries.size() * 4;
+        for (Map.Entry<byte[], Entry> entry : sortedEntries) {
+            data.putInt(offset);
+            offset += 4 + entry.getKey().length + entry.getValue().getEncodedLength();
+        }
+        for (Map.Entry<byte[], Entry> entry : sortedEntries) {
+            byte[] fileKey = entry.getValue().fileKey.getBytes(StandardCharsets.UTF_8);
+            data.putInt(entry.getKey().length).put(entry.getKey());
+            data.putLong(entry.getValue().mTime);
+            data.putLong(entry.getValue().size);
+            data.putInt(fileKey.length).put(fileKey);
+            data.putInt(entry.getValue().hash.length).put(entry.getValue().hash);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data.array(), HEADER_LENGTH, dataLength - HEADER_LENGTH);
+        data.putInt(8, (int) crc.getValue());
+        data.flip();
+
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) channel.write(data);
+            channel.force(true);
+        }
+        try {
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
         }
         isDirty = false;
     }
 
-    public byte[] getDigest(File file) {
-        String key = basePath.relativize(file.toPath()).toString().replace('\\', '/');
-        FileProperty entry = entries.getOrDefault(key, null);
-        if (entry != null) {
-            if (entry.mTime == file.lastModified()) {
-                entriesToSave.put(key, entry);
-                return entry.hash;
+    /** Number of cached entries, as an estimate of how many files the pack has. */
+    public int size() {
+        return loadedCount + addedCount.get();
+    }
+
+    private void putEntry(String key, Entry entry) {
+        if (entries.put(key, entry) == null && findLoaded(loadedData, key) < 0) addedCount.incrementAndGet();
+    }
+
+    private Entry getEntry(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) return entry;
+        ByteBuffer data = loadedData;
+        int offset = findLoaded(data, key);
+        if (offset < 0) return null;
+        int keyLength = data.getInt(offset);
+        int pos = offset + 4 + keyLength;
+        long mTime = data.getLong(pos);
+        pos += 8;
+        long size = -1;
+        String fileKey = "";
+        if (loadedVersion >= 3) {
+            size = data.getLong(pos);
+            byte[] fileKeyBytes = new byte[data.getInt(pos + 8)];
+            data.get(pos + 12, fileKeyBytes);
+            fileKey = new String(fileKeyBytes, StandardCharsets.UTF_8);
+            pos += 12 + fileKeyBytes.length;
+        }
+        byte[] hash = new byte[data.getInt(pos)];
+        data.get(pos + 4, hash);
+        return new Entry(hash, mTime, size, fileKey);
+    }
+
+    /** Offset of the entry with the given key in the loaded cache file, or -1 if it is not there. */
+    private int findLoaded(ByteBuffer data, String key) {
+        if (data == null) return -1;
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int low = 0, high = loadedCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = data.getInt(HEADER_LENGTH + mid * 4);
+            int cmp = compareKey(data, offset + 4, data.getInt(offset), keyBytes);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return offset;
             }
         }
+        return -1;
+    }
+
+    private static int compareKey(ByteBuffer data, int offset, int length, byte[] key) {
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(Byte.toUnsignedInt(data.get(offset + i)), Byte.toUnsignedInt(key[i]));
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    /** Hash of a file under the base path, using the attributes just read from the walk that found it. */
+    public byte[] getDigest(Path file, BasicFileAttributes attributes) {
+        if (attributes.isSymbolicLink()) {
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException ignored) { }
+        }
+        String key = basePath.relativize(file).toString().replace('\\', '/');
+        Entry entry = getEntry(key);
+        if (entry != null && entry.matches(attributes)) {
+            if (entry.size == -1) {
+                // From an older cache file, record the attributes it lacks
+                entry = new Entry(entry.hash, attributes);
+                putEntry(key, entry);
+                isDirty = true;
+            }
+            entriesToSave.put(key, entry);
+            return entry.hash;
+        }
         byte[] hash;
         try {
-            hash = calculateDigest(file);
+            hash = calculateDigest(file.toFile());
         } catch (IOException ex) {
             hash = new byte[20];
         }
-        entry = new FileProperty(hash, file.lastModified());
-        entries.put(key, entry);
+        entry = new Entry(hash, attributes);
+        putEntry(key, entry);
         entriesToSave.put(key, entry);
         isDirty = true;
         return hash;
     }
 
-    public byte[] getDigestNoCache(File file) {
-        String key = basePath.relativize(file.toPath()).toString().replace('\\', '/');
-        byte[] hash;
+    public void putDigest(Path file, byte[] hash) {
+        String key = basePath.relativize(file).toString().replace('\\', '/');
+        Entry entry;
         try {
-            hash = calculateDigest(file);
+            entry = new Entry(hash, Files.readAttributes(file, BasicFileAttributes.class));
         } catch (IOException ex) {
-            hash = new byte[20];
+            // Not cached then, the next scan hashes it again
+            return;
         }
-        entries.put(key, new FileProperty(hash, file.lastModified()));
+        putEntry(key, entry);
+        entriesToSave.put(key, entry);
         isDirty = true;
-        return hash;
     }
 
     public static byte[] calculateDigest(File file) throws IOException {
@@ -2,22 +2,28 @@ package cn.zbx1425.resourcepackupdater.io;
 
 import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
 import cn.zbx1425.resourcepackupdater.io.network.RemoteMetadata;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.util.*;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LocalMetadata {
 
     public List<String> dirs = new ArrayList<>();
-    public HashMap<String, byte[]> files = new HashMap<>();
+    public FileIndex files = new FileIndex();
 
     public String baseDir;
     public HashCache hashCache;
@@ -29,6 +35,11 @@ public class LocalMetadata {
         this.hashCache = new HashCache(Paths.get(baseDir));
     }
 
+    /** Whether an earlier scan left hashes behind; without them every file is read in full. */
+    public boolean hasHashCache() {
+        return Files.isRegularFile(Path.of(baseDir, HASH_CACHE_FILE_NAME));
+    }
+
     public void loadHashCache() throws Exception {
         hashCache.load(Path.of(baseDir, HASH_CACHE_FILE_NAME));
     }
@@ -38,32 +49,198 @@ public class LocalMetadata {
         dirs.clear();
         files.clear();
 
-        int filesScanned = 0;
-
         Path basePath = Paths.get(baseDir);
         if (!Files.isDirectory(basePath)) {
             Files.createDirectories(basePath);
         }
-        try (Stream<Path> walkStream = Files.walk(basePath)) {
-            for (Path entry : walkStream.toList()) {
-                String relPath = basePath.relativize(entry).toString().replace('\\', '/');
-                if (relPath.equals(HASH_CACHE_FILE_NAME)) continue;
-                if (Files.isDirectory(entry)) {
-                    dirs.add(relPath);
-                } else {
-                    if (entry.getFileName().toString().toLowerCase(Locale.ROOT).equals("desktop.ini")) continue;
-                    // shouldEncrypt check cancelled for now
-                    // if (shouldEncrypt) AssetEncryption.encryptIfRaw(entry.toFile());
-                    filesScanned++;
-                    if (filesScanned % 200 == 0) {
-                        cb.setProgress((float)filesScanned / hashCache.entries.size(), 0);
-                        cb.setInfo(filesScanned + " / " + hashCache.entries.size(), "");
+
+        // Traversal and hashing happen on the pool; this thread only polls progress,
+        // since the progress receiver must stay on the thread that owns the GL context.
+        ConcurrentLinkedQueue<String> scannedDirs = new ConcurrentLinkedQueue<>();
+        ConcurrentHashMap<String, byte[]> scannedFiles = new ConcurrentHashMap<>();
+        AtomicInteger filesScanned = new AtomicInteger(0);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        try {
+            ScanDirTask rootTask = new ScanDirTask(basePath, basePath, scannedDirs, scannedFiles, filesScanned);
+            pool.execute(rootTask);
+            while (!rootTask.isDone()) {
+                int scanned = filesScanned.get();
+                cb.setProgress((float)scanned / Math.max(1, hashCache.size()), 0);
+                cb.setInfo(scanned + " / " + hashCache.size(), "");
+                Thread.sleep(1000 / 30);
+            }
+            rootTask.join();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        dirs.addAll(scannedDirs);
+        Collections.sort(dirs);
+        for (Map.Entry<String, byte[]> entry : scannedFiles.entrySet()) {
+            files.put(entry.getKey(), entry.getValue(), 0, 0);
+        }
+        saveHashCache();
+    }
+
+    /**
+     * Brings the result of an earlier scan up to date by rescanning only the given paths, relative to the pack
+     * folder. Each may be a file or directory that was created, modified or deleted since.
+     */
+    public void rescanPaths(Set<String> changedPaths, ProgressReceiver cb) throws Exception {
+        Path basePath = Paths.get(baseDir);
+        FileIndex oldFiles = files;
+        TreeSet<String> newDirs = new TreeSet<>();
+        files = new FileIndex();
+        for (String dir : dirs) {
+            if (!isInPaths(dir, changedPaths)) newDirs.add(dir);
+        }
+        for (int i = 0; i < oldFiles.size(); i++) {
+            String file = oldFiles.getPath(i);
+            if (!isInPaths(file, changedPaths)) files.put(file, oldFiles.getHash(i), 0, 0);
+        }
+
+        ConcurrentLinkedQueue<String> scannedDirs = new ConcurrentLinkedQueue<>();
+        ConcurrentHashMap<String, byte[]> scannedFiles = new ConcurrentHashMap<>();
+        AtomicInteger filesScanned = new AtomicInteger(0);
+        for (String changedPath : changedPaths) {
+            Path entry = basePath.resolve(changedPath);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException ex) {
+                continue;
+            }
+            if (attributes.isDirectory()) {
+                new ScanDirTask(basePath, entry, scannedDirs, scannedFiles, filesScanned).invoke();
+            } else if (attributes.isSymbolicLink() && Files.isDirectory(entry)) {
+                scannedDirs.add(changedPath);
+            } else {
+                if (entry.getFileName().toString().toLowerCase(Locale.ROOT).equals("desktop.ini")) continue;
+                scannedFiles.put(changedPath, hashCache.getDigest(entry, attributes));
+            }
+            cb.setInfo(changedPath, "");
+        }
+        newDirs.addAll(scannedDirs);
+        dirs = new ArrayList<>(newDirs);
+        for (Map.Entry<String, byte[]> entry : scannedFiles.entrySet()) {
+            files.put(entry.getKey(), entry.getValue(), 0, 0);
+        }
+        saveHashCache();
+    }
+
+    private static boolean isInPaths(String path, Set<String> paths) {
+        while (true) {
+            if (paths.contains(path)) return true;
+            if (path.isEmpty()) return false;
+            path = FileIndex.getParentPath(path);
+        }
+    }
+
+    /** Takes over the remote file list after a successful sync, which is what the pack folder now holds. */
+    public void adoptRemote(RemoteMetadata remoteMetadata) {
+        dirs = new ArrayList<>(remoteMetadata.dirs);
+        Collections.sort(dirs);
+        files = new FileIndex();
+        for (int i = 0; i < remoteMetadata.files.size(); i++) {
+            files.put(remoteMetadata.files.getPath(i), remoteMetadata.files.getHash(i), 0, 0);
+        }
+    }
+
+    private class ScanDirTask extends RecursiveAction {
+
+        private final Path basePath;
+        private final Path dir;
+        private final Queue<String> scannedDirs;
+        private final Map<String, byte[]> scannedFiles;
+        private final AtomicInteger filesScanned;
+
+        ScanDirTask(Path basePath, Path dir, Queue<String> scannedDirs, Map<String, byte[]> scannedFiles, AtomicInteger filesScanned) {
+            this.basePath = basePath;
+            this.dir = dir;
+            this.scannedDirs = scannedDirs;
+            this.scannedFiles = scannedFiles;
+            this.filesScanned = filesScanned;
+        }
+
+        @Override
+        protected void compute() {
+            scannedDirs.add(basePath.relativize(dir).toString().replace('\\', '/'));
+            List<RecursiveAction> subTasks = new ArrayList<>();
+            List<FileToHash> filesToHash = new ArrayList<>();
+            try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir)) {
+                for (Path entry : dirStream) {
+                    String relPath = basePath.relativize(entry).toString().replace('\\', '/');
+                    if (relPath.equals(HASH_CACHE_FILE_NAME) || relPath.equals(PackWatcher.MARKER_FILE_NAME)) continue;
+                    // One attribute read serves both the walk and the hash cache check
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        subTasks.add(new ScanDirTask(basePath, entry, scannedDirs, scannedFiles, filesScanned));
+                    } else if (attributes.isSymbolicLink() && Files.isDirectory(entry)) {
+                        // Symbolic link to a directory: listed like Files.walk would, but not descended into
+                        scannedDirs.add(relPath);
+                    } else {
+                        if (entry.getFileName().toString().toLowerCase(Locale.ROOT).equals("desktop.ini")) continue;
+                        // shouldEncrypt check cancelled for now
+                        // if (shouldEncrypt) AssetEncryption.encryptIfRaw(entry.toFile());
+                        filesToHash.add(new FileToHash(entry, relPath, attributes));
                     }
-                    files.put(relPath, hashCache.getDigest(entry.toFile()));
                 }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            // Hashed in batches of their own, so that a large flat folder is spread over the pool too
+            if (!filesToHash.isEmpty()) {
+                subTasks.add(new HashFilesTask(filesToHash, 0, filesToHash.size(), scannedFiles, filesScanned));
+            }
+            invokeAll(subTasks);
+        }
+    }
+
+    private static class FileToHash {
+
+        final Path path;
+        final String relPath;
+        final BasicFileAttributes attributes;
+
+        FileToHash(Path path, String relPath, BasicFileAttributes attributes) {
+            this.path = path;
+            this.relPath = relPath;
+            this.attributes = attributes;
+        }
+    }
+
+    private class HashFilesTask extends RecursiveAction {
+
+        private static final int BATCH_SIZE = 64;
+
+        private final List<FileToHash> files;
+        private final int from;
+        private final int to;
+        private final Map<String, byte[]> scannedFiles;
+        private final AtomicInteger filesScanned;
+
+        HashFilesTask(List<FileToHash> files, int from, int to, Map<String, byte[]> scannedFiles, AtomicInteger filesScanned) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.scannedFiles = scannedFiles;
+            this.filesScanned = filesScanned;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashFilesTask(files, from, middle, scannedFiles, filesScanned),
+                        new HashFilesTask(files, middle, to, scannedFiles, filesScanned));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                FileToHash file = files.get(i);
+                scannedFiles.put(file.relPath, hashCache.getDigest(file.path, file.attributes));
+                filesScanned.incrementAndGet();
             }
         }
-        saveHashCache();
     }
 
     public void saveHashCache() throws IOException {
@@ -71,46 +248,93 @@ public class LocalMetadata {
     }
 
     public byte[] getDirChecksum() throws Exception {
-        ByteBuf buf = Unpooled.buffer(1024 * 512);
-        dirs.stream().sorted().forEach(dir -> buf.writeCharSequence(dir, StandardCharsets.UTF_8));
-        files.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(entry -> {
-            buf.writeCharSequence(entry.getKey(), StandardCharsets.UTF_8);
-            buf.writeBytes(entry.getValue());
-        });
+        // Same bytes as the concatenation of sorted dir paths, then sorted file paths each followed by
+        // its hash, but fed to the digest directly instead of collected in a buffer first
         MessageDigest digest = MessageDigest.getInstance("SHA-1");
-        buf.capacity(buf.writerIndex());
-        InputStream fis = new ByteArrayInputStream(buf.array());
-        int n = 0;
-        byte[] buffer = new byte[8192];
-        while (n != -1) {
-            n = fis.read(buffer);
-            if (n > 0) {
-                digest.update(buffer, 0, n);
-            }
+        List<String> sortedDirs = new ArrayList<>(dirs);
+        Collections.sort(sortedDirs);
+        for (String dir : sortedDirs) {
+            digest.update(dir.getBytes(StandardCharsets.UTF_8));
+        }
+        for (int i = 0; i < files.size(); i++) {
+            digest.update(files.getPath(i).getBytes(StandardCharsets.UTF_8));
+            digest.update(files.getHash(i));
         }
         return digest.digest();
     }
 
+    /**
+     * Hashes of every directory as a Merkle tree, keyed by directory path ("" for the pack root).
+     * A directory hashes to the SHA1 of its direct children ordered by name, each written as
+     * 'd' or 'f', the UTF-8 name, a 0 byte, and the 20 byte hash of the subdirectory or file.
+     */
+    public Map<String, byte[]> getTreeHashes() throws Exception {
+        Map<String, List<TreeEntry>> children = new HashMap<>();
+        for (String dir : dirs) {
+            if (dir.isEmpty()) continue;
+            children.computeIfAbsent(FileIndex.getParentPath(dir), k -> new ArrayList<>()).add(new TreeEntry(dir, -1));
+        }
+        for (int i = 0; i < files.size(); i++) {
+            String file = files.getPath(i);
+            children.computeIfAbsent(FileIndex.getParentPath(file), k -> new ArrayList<>()).add(new TreeEntry(file, i));
+        }
+        Map<String, byte[]> treeHashes = new HashMap<>();
+        hashTree("", children, treeHashes, MessageDigest.getInstance("SHA-1"));
+        return treeHashes;
+    }
+
+    private byte[] hashTree(String dir, Map<String, List<TreeEntry>> children, Map<String, byte[]> treeHashes,
+                            MessageDigest digest) {
+        List<TreeEntry> entries = children.getOrDefault(dir, List.of());
+        List<byte[]> entryHashes = new ArrayList<>(entries.size());
+        entries.sort(Comparator.comparing(entry -> entry.name));
+        for (TreeEntry entry : entries) {
+            entryHashes.add(entry.fileIndex < 0 ? hashTree(entry.path, children, treeHashes, digest) : files.getHash(entry.fileIndex));
+        }
+        digest.reset();
+        for (int i = 0; i < entries.size(); i++) {
+            digest.update((byte) (entries.get(i).fileIndex < 0 ? 'd' : 'f'));
+            digest.update(entries.get(i).name.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(entryHashes.get(i));
+        }
+        byte[] hash = digest.digest();
+        treeHashes.put(dir, hash);
+        return hash;
+    }
+
+    private static class TreeEntry {
+
+        final String path;
+        final String name;
+        final int fileIndex;
+
+        TreeEntry(String path, int fileIndex) {
+            this.path = path;
+            this.name = path.substring(path.lastIndexOf('/') + 1);
+            this.fileIndex = fileIndex;
+        }
+    }
+
     public List<String> getDirsToCreate(RemoteMetadata other) {
-        return other.dirs.stream().filter(dir -> !dirs.contains(dir)).toList();
+        Set<String> localDirs = new HashSet<>(dirs);
+        return other.dirs.stream().filter(dir -> !localDirs.contains(dir)).toList();
     }
 
     public List<String> getDirsToDelete(RemoteMetadata other) {
-        return dirs.stream().filter(dir -> !other.dirs.contains(dir)).toList();
+        Set<String> remoteDirs = new HashSet<>(other.dirs);
+        return dirs.stream().filter(dir -> !remoteDirs.contains(dir)).toList();
     }
 
     public List<String> getFilesToCreate(RemoteMetadata other) {
-        return other.files.keySet().stream().filter(file -> !files.containsKey(file)).toList();
+        return other.files.getPathsNotIn(files);
     }
 
     public List<String> getFilesToUpdate(RemoteMetadata other) {
-        return files.entrySet().stream().filter(
-                entry -> other.files.containsKey(entry.getKey())
-                        && !Arrays.equals(other.files.get(entry.getKey()).hash, entry.getValue())
-        ).map(Map.Entry::getKey).toList();
+        return files.getPathsWithDifferentHash(other.files);
     }
 
     public List<String> getFilesToDelete(RemoteMetadata other) {
-        return files.keySet().stream().filter(file -> !other.files.containsKey(file)).toList();
+        return files.getPathsNotIn(other.files);
     }
 }
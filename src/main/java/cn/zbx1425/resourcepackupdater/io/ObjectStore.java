@@ -0,0 +1,108 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
+import cn.zbx1425.resourcepackupdater.io.network.PackOutputStream;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Content-addressed copies of pack files, keyed by the SHA-1 of their plain content, so that content
+ * the pack had before (under any source or variant) is never downloaded again.
+ * <p>
+ * Objects are kept in the form they had on disk, encrypted ones with an ".enc" suffix, and are hard links to
+ * the pack files where the file system allows, so that a file in both places only takes space once.
+ * Pack files are only ever replaced, never written in place, which keeps the objects intact; they are still
+ * hashed before use in case something else did. Nothing is pruned: deleting the folder is always safe.
+ */
+public class ObjectStore {
+
+    private static final String ENCRYPTED_SUFFIX = ".enc";
+
+    private final Path baseDir;
+
+    public ObjectStore(Path baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    private Path getObjectPath(byte[] hash, boolean encrypted) {
+        String hex = Hex.encodeHexString(hash);
+        return baseDir.resolve(hex.substring(0, 2)).resolve(encrypted ? hex + ENCRYPTED_SUFFIX : hex);
+    }
+
+    public boolean contains(byte[] hash) {
+        return Files.isRegularFile(getObjectPath(hash, false)) || Files.isRegularFile(getObjectPath(hash, true));
+    }
+
+    /** Keeps the content of a pack file whose plain content has the given hash, unless it is kept already. */
+    public void adopt(Path file, byte[] hash) throws IOException {
+        boolean encrypted;
+        try (FileInputStream fis = new FileInputStream(file.toFile())) {
+            encrypted = AssetEncryption.isEncrypted(fis);
+        }
+        Path object = getObjectPath(hash, encrypted);
+        if (Files.isRegularFile(object)) return;
+        Files.createDirectories(object.getParent());
+        Path tempFile = object.resolveSibling(object.getFileName() + PackOutputStream.TEMP_FILE_SUFFIX);
+        linkOrCopy(file, tempFile);
+        moveReplacing(tempFile, object);
+    }
+
+    /**
+     * Makes the target a pack file with the content of the given hash, in the encryption form asked for,
+     * and records it in the hash cache. Returns false if the content is not kept, or what is kept is damaged.
+     */
+    public boolean materialize(byte[] hash, Path target, boolean encrypt, HashCache hashCache) throws IOException {
+        Path object = getObjectPath(hash, encrypt);
+        if (Files.isRegularFile(object)) {
+            if (Arrays.equals(HashCache.calculateDigest(object.toFile()), hash)) {
+                Path tempFile = target.resolveSibling(target.getFileName() + PackOutputStream.TEMP_FILE_SUFFIX);
+                linkOrCopy(object, tempFile);
+                moveReplacing(tempFile, target);
+                hashCache.putDigest(target, hash);
+                return true;
+            }
+            Files.deleteIfExists(object);
+        }
+
+        // Kept in the other form only: convert it, PackOutputStream verifies the content on the way
+        Path otherObject = getObjectPath(hash, !encrypt);
+        if (!Files.isRegularFile(otherObject)) return false;
+        PackOutputStream outputStream = new PackOutputStream(target, encrypt, hashCache, hash);
+        try (InputStream inputStream = AssetEncryption.wrapInputStream(new FileInputStream(otherObject.toFile()))) {
+            inputStream.transferTo(outputStream);
+            outputStream.close();
+        } catch (IOException ex) {
+            outputStream.abort();
+            Files.deleteIfExists(otherObject);
+            return false;
+        }
+        adopt(target, hash);
+        return true;
+    }
+
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException ex) {
+            // Another file system, or one without hard links
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void moveReplacing(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
+import cn.zbx1425.resourcepackupdater.io.network.PackOutputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * All files of the pack folder packed into one file next to it, for the game to read its resources from
+ * instead of opening each file on its own. Kept only when packedStorage is on; the folder stays what is synced.
+ * <p>
+ * The file starts with the magic "RPUBLOB1", int version, the SHA-1 of the file list (each path and hash)
+ * it was built for, and int entry count, then for each entry sorted by path its UTF-8 path (int length first),
+ * long offset and long length, then the contents as they are on disk, encrypted ones included.
+ * Every sync deletes it before changing the folder and builds it again afterwards.
+ * <p>
+ * Each entry is read through a channel of its own, so that a reader being interrupted (which closes the channel
+ * it was reading from) does not take the others down with it. A blob that was deleted or replaced refuses to
+ * open entries, for the reader to go to the folder instead.
+ */
+public class PackBlob implements Closeable {
+
+    public static final String FILE_SUFFIX = ".rpu_blob";
+
+    private static final byte[] HEADER_MAGIC = "RPUBLOB1".getBytes(StandardCharsets.UTF_8);
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Object lock = new Object();
+    private static File openedPackDir;
+    private static PackBlob opened;
+
+    private final Path blobPath;
+    private final byte[] contentChecksum;
+    private final PackListing listing;
+    private final long[] offsets;
+    private final long[] lengths;
+    private boolean closed = false;
+
+    private PackBlob(Path blobPath, FileChannel channel) throws IOException {
+        this.blobPath = blobPath;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        if (!Arrays.equals(dis.readNBytes(HEADER_MAGIC.length), HEADER_MAGIC) || dis.readInt() != FORMAT_VERSION) {
+            throw new IOException("Not a pack blob");
+        }
+        contentChecksum = dis.readNBytes(20);
+        int entryCount = dis.readInt();
+        String[] paths = new String[entryCount];
+        offsets = new long[entryCount];
+        lengths = new long[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            paths[i] = new String(dis.readNBytes(dis.readInt()), StandardCharsets.UTF_8);
+            offsets[i] = dis.readLong();
+            lengths[i] = dis.readLong();
+            if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > channel.size()) {
+                throw new IOException("Pack blob is truncated");
+            }
+        }
+        listing = new PackListing(paths);
+    }
+
+    public static Path getBlobPath(String baseDir) {
+        return Paths.get(baseDir + FILE_SUFFIX);
+    }
+
+    /** The blob of the given pack folder, opened on first use. Null if there is none. */
+    public static PackBlob get(File packDir) {
+        synchronized (lock) {
+            if (!packDir.equals(openedPackDir)) {
+                closeOpened();
+                openedPackDir = packDir;
+                opened = open(getBlobPath(packDir.getPath()));
+            }
+            return opened;
+        }
+    }
+
+    private static PackBlob open(Path blobPath) {
+        if (!Files.isRegularFile(blobPath)) return null;
+        try (FileChannel channel = FileChannel.open(blobPath, StandardOpenOption.READ)) {
+            return new PackBlob(blobPath, channel);
+        } catch (IOException ex) {
+            ResourcePackUpdater.LOGGER.warn("Cannot open the pack blob, resources are read from the folder", ex);
+            return null;
+        }
+    }
+
+    private static void closeOpened() {
+        if (opened != null) opened.close();
+        opened = null;
+        openedPackDir = null;
+    }
+
+    /** Removes the blob of the given pack folder, which is stale from the moment the folder changes. */
+    public static void delete(String baseDir) throws IOException {
+        synchronized (lock) {
+            closeOpened();
+            Files.deleteIfExists(getBlobPath(baseDir));
+        }
+    }
+
+    /** Builds the blob for the given pack folder, unless the one there is for the same content already. */
+    public static void update(String baseDir, FileIndex files, ProgressReceiver cb) throws IOException {
+        Path blobPath = getBlobPath(baseDir);
+        byte[] contentChecksum = getContentChecksum(files);
+        synchronized (lock) {
+            PackBlob current = open(blobPath);
+            if (current != null) {
+                boolean upToDate = Arrays.equals(current.contentChecksum, contentChecksum);
+                current.close();
+                if (upToDate) return;
+            }
+            closeOpened();
+        }
+
+        cb.printLog("Packing files into one file ...");
+        int entryCount = files.size();
+        long[] lengths = new long[entryCount];
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(index);
+        dos.write(HEADER_MAGIC);
+        dos.writeInt(FORMAT_VERSION);
+        dos.write(contentChecksum);
+        dos.writeInt(entryCount);
+        long indexLength = index.size();
+        for (int i = 0; i < entryCount; i++) {
+            lengths[i] = Files.size(Paths.get(baseDir, files.getPath(i)));
+            indexLength += 4 + files.getPath(i).getBytes(StandardCharsets.UTF_8).length + 8 + 8;
+        }
+        long offset = indexLength;
+        for (int i = 0; i < entryCount; i++) {
+            byte[] path = files.getPath(i).getBytes(StandardCharsets.UTF_8);
+            dos.writeInt(path.length);
+            dos.write(path);
+            dos.writeLong(offset);
+            dos.writeLong(lengths[i]);
+            offset += lengths[i];
+        }
+        dos.flush();
+
+        Path tempFile = blobPath.resolveSibling(blobPath.getFileName() + PackOutputStream.TEMP_FILE_SUFFIX);
+        try (FileChannel out = FileChannel.open(tempFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer indexBuffer = ByteBuffer.wrap(index.toByteArray());
+            while (indexBuffer.hasRemaining()) out.write(indexBuffer);
+            for (int i = 0; i < entryCount; i++) {
+                try (FileChannel in = FileChannel.open(Paths.get(baseDir, files.getPath(i)), StandardOpenOption.READ)) {
+                    long copied = 0;
+                    while (copied < lengths[i]) {
+                        long n = in.transferTo(copied, lengths[i] - copied, out);
+                        if (n <= 0) throw new IOException(files.getPath(i) + " changed while being packed");
+                        copied += n;
+                    }
+                }
+                if (i % 100 == 0) cb.setProgress(i, entryCount);
+            }
+        } catch (IOException ex) {
+            Files.deleteIfExists(tempFile);
+            throw ex;
+        }
+        synchronized (lock) {
+            closeOpened();
+            try {
+                Files.move(tempFile, blobPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, blobPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        cb.amendLastLog("Done");
+        cb.setProgress(0, 0);
+    }
+
+    private static byte[] getContentChecksum(FileIndex files) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        for (int i = 0; i < files.size(); i++) {
+            digest.update(files.getPath(i).getBytes(StandardCharsets.UTF_8));
+            digest.update(files.getHash(i));
+        }
+        return digest.digest();
+    }
+
+    public PackListing getListing() {
+        return listing;
+    }
+
+    /**
+     * The plain content of an entry, decrypted as it is read. Null if there is no such entry.
+     * Throws ClosedChannelException once a sync has deleted or replaced the blob.
+     */
+    public InputStream openEntry(String path) throws IOException {
+        int index = listing.indexOf(path);
+        if (index < 0) return null;
+        FileChannel channel;
+        synchronized (lock) {
+            // Under the lock, so the file opened is the one this index was read from
+            if (closed) throw new ClosedChannelException();
+            channel = FileChannel.open(blobPath, StandardOpenOption.READ);
+        }
+        return AssetEncryption.wrapRegion(channel, offsets[index], lengths[index], true);
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+    }
+}
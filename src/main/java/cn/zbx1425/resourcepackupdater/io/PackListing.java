@@ -0,0 +1,95 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Sorted paths of the files in the pack folder, for resources to be listed without walking the folder.
+ * <p>
+ * The Dispatcher publishes the one of the synced pack after each sync (when cachedListing is on), from the
+ * LocalMetadata that already knows every path. It is dropped when a sync starts changing the folder, and when
+ * the PackWatcher sees a file created or deleted in it; without a watcher, files added by hand only show up
+ * after the next sync.
+ */
+public class PackListing {
+
+    private static class Published {
+
+        final Path packDir;
+        final PackListing listing;
+
+        Published(Path packDir, PackListing listing) {
+            this.packDir = packDir;
+            this.listing = listing;
+        }
+    }
+
+    private static volatile Published published;
+
+    private final String[] paths;
+
+    /** The paths must be sorted in ascending order. */
+    public PackListing(String[] paths) {
+        this.paths = paths;
+    }
+
+    public static PackListing of(FileIndex files) {
+        String[] paths = new String[files.size()];
+        for (int i = 0; i < paths.length; i++) paths[i] = files.getPath(i);
+        return new PackListing(paths);
+    }
+
+    public static void publish(String baseDir, FileIndex files) {
+        published = new Published(normalize(Paths.get(baseDir)), of(files));
+    }
+
+    public static void invalidate() {
+        published = null;
+    }
+
+    /** The published listing of the given pack folder. Null if there is none. */
+    public static PackListing get(File packDir) {
+        Published current = published;
+        if (current == null || !current.packDir.equals(normalize(packDir.toPath()))) return null;
+        return current.listing;
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /** Position of the path in the listing, or a negative number as Arrays.binarySearch gives if it is not there. */
+    public int indexOf(String path) {
+        return Arrays.binarySearch(paths, path);
+    }
+
+    public boolean hasEntry(String path) {
+        return indexOf(path) >= 0;
+    }
+
+    /** Paths of all files under the given directory (which ends with "/"), with that part cut off. */
+    public List<String> listEntries(String dirPrefix) {
+        List<String> result = new ArrayList<>();
+        int index = indexOf(dirPrefix);
+        if (index < 0) index = -index - 1;
+        for (; index < paths.length && paths[index].startsWith(dirPrefix); index++) {
+            result.add(paths[index].substring(dirPrefix.length()));
+        }
+        return result;
+    }
+
+    /** Names of the directories directly under the given one (which ends with "/") that have files. */
+    public TreeSet<String> listSubdirectories(String dirPrefix) {
+        TreeSet<String> result = new TreeSet<>();
+        for (String entry : listEntries(dirPrefix)) {
+            int slash = entry.indexOf('/');
+            if (slash > 0) result.add(entry.substring(0, slash));
+        }
+        return result;
+    }
+}
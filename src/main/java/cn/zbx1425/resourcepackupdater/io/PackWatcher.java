@@ -0,0 +1,149 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Journals changes to the pack folder while the game runs, so that the next sync can reuse the
+ * LocalMetadata of the last one and only rescan the paths that changed, instead of walking the whole pack.
+ * <p>
+ * The "clean since" marker next to the hash cache holds the session of the watcher that trusts the folder.
+ * Any sync, including one by another game instance sharing the folder, deletes it first,
+ * which makes every other watcher fall back to a full scan.
+ */
+public class PackWatcher implements Closeable {
+
+    public static final String MARKER_FILE_NAME = "updater_clean_since.txt";
+
+    public final LocalMetadata localMetadata;
+
+    private final Path basePath;
+    private final Path markerFile;
+    private final String sessionId = UUID.randomUUID().toString();
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchKeys = new ConcurrentHashMap<>();
+    private final Set<String> changedPaths = ConcurrentHashMap.newKeySet();
+    private volatile boolean overflowed = false;
+    private final Thread thread;
+
+    private PackWatcher(LocalMetadata localMetadata) throws IOException {
+        this.localMetadata = localMetadata;
+        this.basePath = Paths.get(localMetadata.baseDir);
+        this.markerFile = basePath.resolve(MARKER_FILE_NAME);
+        this.watchService = basePath.getFileSystem().newWatchService();
+        try {
+            registerAll(basePath);
+        } catch (IOException ex) {
+            watchService.close();
+            throw ex;
+        }
+        this.thread = new Thread(this::run, "RPU Pack Watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        Files.writeString(markerFile, sessionId + "\n" + System.currentTimeMillis() + "\n", StandardCharsets.UTF_8);
+    }
+
+    /** Starts watching the folder of a LocalMetadata that matches its content right now. */
+    public static PackWatcher start(LocalMetadata localMetadata) {
+        try {
+            return new PackWatcher(localMetadata);
+        } catch (IOException ex) {
+            ResourcePackUpdater.LOGGER.warn("Cannot watch the pack folder, it will be scanned in full", ex);
+            return null;
+        }
+    }
+
+    /** Makes every watcher on this folder distrust its journal. */
+    public static void invalidate(String baseDir) {
+        try {
+            Files.deleteIfExists(Paths.get(baseDir, MARKER_FILE_NAME));
+        } catch (IOException ignored) { }
+    }
+
+    /** Whether no change could have been missed since the watcher started. */
+    public boolean isClean() {
+        if (overflowed || !thread.isAlive()) return false;
+        try {
+            return Files.readAllLines(markerFile, StandardCharsets.UTF_8).get(0).equals(sessionId);
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    /** Paths relative to the pack folder that were created, modified or deleted since the last call. */
+    public Set<String> drainChangedPaths() {
+        Set<String> result = new HashSet<>();
+        for (String path : changedPaths) {
+            changedPaths.remove(path);
+            result.add(path);
+        }
+        return result;
+    }
+
+    private void registerAll(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+                watchKeys.put(subDir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), subDir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            Path dir = watchKeys.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW || dir == null) {
+                    overflowed = true;
+                    PackListing.invalidate();
+                    continue;
+                }
+                Path child = dir.resolve((Path) event.context());
+                String relPath = basePath.relativize(child).toString().replace('\\', '/');
+                // The hash cache is saved through a temporary file next to it
+                if (relPath.startsWith(localMetadata.HASH_CACHE_FILE_NAME) || relPath.equals(MARKER_FILE_NAME)) continue;
+                changedPaths.add(relPath);
+                if (event.kind() != ENTRY_MODIFY) PackListing.invalidate();
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    // Anything created in it before it got registered is picked up by rescanning the directory
+                    try {
+                        registerAll(child);
+                    } catch (IOException ex) {
+                        overflowed = true;
+                    }
+                }
+            }
+            if (!key.reset()) {
+                watchKeys.remove(key);
+                if (basePath.equals(dir)) overflowed = true;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException ignored) { }
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,90 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import cn.zbx1425.resourcepackupdater.io.FileProperty;
+import cn.zbx1425.resourcepackupdater.io.HashCache;
+import cn.zbx1425.resourcepackupdater.io.ProgressReceiver;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Downloads the whole /dist folder as one zip archive and extracts the wanted files while it streams in,
+ * for when fetching them one by one would be bound by the number of requests.
+ */
+public class ArchiveExtractor {
+
+    public static final String ARCHIVE_FILE_NAME = "dist.zip";
+
+    private final RemoteMetadata remoteMetadata;
+    private final String baseDir;
+    private final HashCache hashCache;
+
+    public final Set<String> extractedFiles = new HashSet<>();
+    public long downloadedBytes;
+
+    public ArchiveExtractor(RemoteMetadata remoteMetadata, String baseDir, HashCache hashCache) {
+        this.remoteMetadata = remoteMetadata;
+        this.baseDir = baseDir;
+        this.hashCache = hashCache;
+    }
+
+    /**
+     * Extracts the files in filesWanted that appear in the archive, each verified against the remote metadata.
+     * Files that end up missing from extractedFiles are to be downloaded individually afterwards.
+     */
+    public void extract(Set<String> filesWanted, ProgressReceiver cb) throws IOException {
+        HttpResponse<InputStream> response = PackHttpClient.send(
+                PackHttpClient.newRequest(URI.create(remoteMetadata.baseUrl + "/" + ARCHIVE_FILE_NAME)).build());
+        long archiveSize = PackHttpClient.getContentLength(response);
+        long lastNoticeBytes = 0;
+        final long noticeDivisor = 262144;
+
+        try (CountingInputStream countingStream = new CountingInputStream(PackHttpClient.unwrapHttpResponse(response));
+             ZipInputStream zipStream = new ZipInputStream(new BufferedInputStream(countingStream))) {
+            ZipEntry entry;
+            while ((entry = zipStream.getNextEntry()) != null) {
+                String fileName = entry.getName().replace('\\', '/');
+                // Only paths listed in the metadata get written, this also keeps entries from escaping the pack
+                FileProperty property = remoteMetadata.files.get(fileName);
+                if (!entry.isDirectory() && property != null && filesWanted.contains(fileName)) {
+                    PackOutputStream target = new PackOutputStream(Paths.get(baseDir, fileName),
+                            remoteMetadata.encrypt, hashCache, property.hash);
+                    try {
+                        IOUtils.copy(zipStream, target);
+                    } catch (IOException ex) {
+                        target.abort();
+                        throw ex;
+                    }
+                    try {
+                        target.close();
+                        extractedFiles.add(fileName);
+                    } catch (IOException ex) {
+                        // A corrupted entry is left for the individual download
+                        cb.printLog(String.format("Skipped %s in archive: %s", fileName, ex.getMessage()));
+                    }
+                }
+
+                long archiveBytes = countingStream.getByteCount();
+                downloadedBytes = archiveBytes;
+                if (lastNoticeBytes / noticeDivisor != archiveBytes / noticeDivisor) {
+                    lastNoticeBytes = archiveBytes;
+                    String message = String.format(": %5d KiB / %5d KiB; %d files extracted",
+                            archiveBytes / 1024, Math.max(archiveSize, 0) / 1024, extractedFiles.size());
+                    cb.setProgress(archiveSize > 0 ? archiveBytes * 1f / archiveSize : 0, 0);
+                    cb.setInfo(fileName, message);
+                }
+            }
+            downloadedBytes = countingStream.getByteCount();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+
+public class ConcurrencyController {
+
+    /** A semaphore whose permits can be taken away again, even while they are held. */
+    private static class ConnectionPermits extends Semaphore {
+
+        ConnectionPermits() {
+            super(0);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    public static int lastConcurrency = 0;
+
+    private final ThreadPoolExecutor executor;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private int concurrency;
+    /** Every open connection holds one of these, both whole-file transfers and the segments of segmented ones. */
+    private final ConnectionPermits connectionPermits = new ConnectionPermits();
+    private int appliedPermits = 0;
+
+    private static final long SAMPLE_INTERVAL = 2000;
+    private long sampleStartTime = -1;
+    private long sampleBytes = 0;
+    private int sampleFailures = 0;
+    private double lastBytesPerSecond = -1;
+    private int lastAdjustment = 0;
+
+    public ConcurrencyController(ThreadPoolExecutor executor, int minConcurrency, int maxConcurrency, int initialConcurrency) {
+        this.executor = executor;
+        this.minConcurrency = Math.max(1, minConcurrency);
+        this.maxConcurrency = Math.max(this.minConcurrency, maxConcurrency);
+        this.concurrency = Math.max(this.minConcurrency, Math.min(this.maxConcurrency, initialConcurrency));
+        applyConcurrency();
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void acquireConnection() throws InterruptedException {
+        connectionPermits.acquire();
+    }
+
+    public void releaseConnection() {
+        connectionPermits.release();
+    }
+
+    /** Called from the polling thread with what happened since the last call. */
+    public void onSample(long newBytes, int newFailures, int pendingTasks) {
+        long currentTime = System.currentTimeMillis();
+        if (sampleStartTime == -1) sampleStartTime = currentTime;
+        sampleBytes += newBytes;
+        sampleFailures += newFailures;
+        if (currentTime - sampleStartTime < SAMPLE_INTERVAL) return;
+
+        double bytesPerSecond = sampleBytes * 1000.0 / (currentTime - sampleStartTime);
+        int adjustment;
+        if (sampleFailures > 0) {
+            // Timeouts and resets mostly mean the link is saturated, back off quickly
+            adjustment = -Math.max(1, concurrency / 2);
+        } else if (lastAdjustment > 0 && bytesPerSecond < lastBytesPerSecond * 0.95) {
+            // The last added connection made things worse
+            adjustment = -1;
+        } else if (pendingTasks > concurrency && (lastBytesPerSecond < 0 || bytesPerSecond >= lastBytesPerSecond * 0.95)) {
+            adjustment = 1;
+        } else {
+            adjustment = 0;
+        }
+        int newConcurrency = Math.max(minConcurrency, Math.min(maxConcurrency, concurrency + adjustment));
+        lastAdjustment = newConcurrency - concurrency;
+        concurrency = newConcurrency;
+        applyConcurrency();
+
+        lastBytesPerSecond = bytesPerSecond;
+        sampleStartTime = currentTime;
+        sampleBytes = 0;
+        sampleFailures = 0;
+    }
+
+    private void applyConcurrency() {
+        if (concurrency > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(concurrency);
+            executor.setCorePoolSize(concurrency);
+        } else {
+            executor.setCorePoolSize(concurrency);
+            executor.setMaximumPoolSize(concurrency);
+        }
+        // Held permits are not revoked, the connections over the new limit just are not replaced when they end
+        if (concurrency > appliedPermits) {
+            connectionPermits.release(concurrency - appliedPermits);
+        } else if (concurrency < appliedPermits) {
+            connectionPermits.reduce(appliedPermits - concurrency);
+        }
+        appliedPermits = concurrency;
+        lastConcurrency = concurrency;
+    }
+}
@@ -1,13 +1,18 @@
 package cn.zbx1425.resourcepackupdater.io.network;
 
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
 import cn.zbx1425.resourcepackupdater.io.ProgressReceiver;
 
-import java.io.OutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Supplier;
 
 public class DownloadDispatcher {
 
@@ -16,12 +21,18 @@ public class DownloadDispatcher {
     public long totalBytes;
     public long downloadedBytes;
     public AtomicLong newlyDownloadedBytes = new AtomicLong(0);
+    public AtomicInteger newlyFailedAttempts = new AtomicInteger(0);
 
     private long lastSummaryTime = -1;
     private long lastSummaryBytes = 0;
     public long summaryBytesPerSecond = 0;
 
-    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    private final ConcurrencyController concurrencyController = new ConcurrencyController(executor,
+            ResourcePackUpdater.CONFIG.minDownloadConcurrency.value, ResourcePackUpdater.CONFIG.maxDownloadConcurrency.value, 4);
+    // Segments wait for a connection of the controller like everything else, this only bounds the threads doing so
+    final ExecutorService segmentExecutor = Executors.newFixedThreadPool(
+            Math.max(1, ResourcePackUpdater.CONFIG.maxDownloadConcurrency.value));
     public ConcurrentLinkedQueue<DownloadTask> runningTasks = new ConcurrentLinkedQueue<>();
     public ConcurrentLinkedQueue<DownloadTask> incompleteTasks = new ConcurrentLinkedQueue<>();
     private final ConcurrentLinkedQueue<Runnable> delayedProgresses = new ConcurrentLinkedQueue<>();
@@ -34,15 +45,22 @@ public class DownloadDispatcher {
 
     private final int MAX_RETRIES = 8;
 
-    public void dispatch(DownloadTask task, Supplier<OutputStream> target) {
+    public interface TargetSupplier {
+        PackOutputStream get() throws IOException;
+    }
+
+    public void dispatch(DownloadTask task, TargetSupplier target) {
         totalBytes += task.expectedSize;
         incompleteTasks.add(task);
         executor.submit(() -> {
             runningTasks.add(task);
+            // Kept across retries, so that a failed transfer can be resumed from where it stopped
+            PackOutputStream output = null;
             try {
                 while (true) {
                     try {
-                        task.runBlocking(target.get());
+                        if (output == null) output = target.get();
+                        task.runBlocking(output);
                         if (task.failedAttempts > 0) {
                             delayedProgresses.add(() -> {
                                 progressReceiver.printLogOutsidePolling(String.format("Downloading files ... (Retry %d succeed)",
@@ -51,7 +69,9 @@ public class DownloadDispatcher {
                         }
                         break;
                     } catch (Exception ex) {
+                        if (output != null && output.isClosed()) output = null;
                         task.failedAttempts++;
+                        newlyFailedAttempts.incrementAndGet();
                         if (task.failedAttempts < MAX_RETRIES) {
                             delayedProgresses.add(() -> {
                                 progressReceiver.printLogOutsidePolling(String.format("Retry (%d/%d) for %s due to error:",
@@ -64,8 +84,10 @@ public class DownloadDispatcher {
                     }
                 }
             } catch (Exception e) {
+                if (output != null) output.abort();
                 taskException = e;
                 executor.shutdownNow();
+                segmentExecutor.shutdownNow();
                 runningTasks.clear();
                 incompleteTasks.clear();
             } finally {
@@ -79,6 +101,7 @@ public class DownloadDispatcher {
         while (!delayedProgresses.isEmpty()) delayedProgresses.poll().run();
         long newBytes = newlyDownloadedBytes.getAndSet(0);
         downloadedBytes += newBytes;
+        concurrencyController.onSample(newBytes, newlyFailedAttempts.getAndSet(0), incompleteTasks.size());
         if (lastSummaryTime == -1) {
             lastSummaryTime = System.currentTimeMillis();
             lastSummaryBytes = downloadedBytes;
@@ -91,8 +114,9 @@ public class DownloadDispatcher {
             lastSummaryTime = currentTime;
             lastSummaryBytes = downloadedBytes;
         }
-        String message = String.format(": % 5.2f MiB / % 5.2f MiB; %5d KiB/s",
-                downloadedBytes / 1048576.0, totalBytes / 1048576.0, summaryBytesPerSecond / 1024);
+        String message = String.format(": % 5.2f MiB / % 5.2f MiB; %5d KiB/s; %2d Conn.",
+                downloadedBytes / 1048576.0, totalBytes / 1048576.0, summaryBytesPerSecond / 1024,
+                concurrencyController.getConcurrency());
         progressReceiver.setProgress(downloadedBytes * 1f / totalBytes, 0);
 
         String runningProgress = incompleteTasks.size() + " Files Remaining\n" +
@@ -102,6 +126,8 @@ public class DownloadDispatcher {
                         String.format("%.1f%%", task.downloadedBytes * 100f / task.totalBytes)
                 ) + "\t"
                 + (task.failedAttempts > 0 ? "(RETRY " + task.failedAttempts + ") " : "")
+                + (task.getSegmentState() != null ? "(SEG " + task.getSegmentState() + ") " : "")
+                + (task.getMirrorName() != null ? "(VIA " + task.getMirrorName() + ") " : "")
                 + task.fileName)
                 .toList());
         progressReceiver.setInfo(runningProgress, message);
@@ -115,11 +141,24 @@ public class DownloadDispatcher {
         return incompleteTasks.isEmpty();
     }
 
+    void acquireConnection() throws IOException {
+        try {
+            concurrencyController.acquireConnection();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+    }
+
+    void releaseConnection() {
+        concurrencyController.releaseConnection();
+    }
+
     protected void onDownloadProgress(long deltaBytes) {
         newlyDownloadedBytes.addAndGet(deltaBytes);
     }
 
     public void close() {
         executor.shutdown();
+        segmentExecutor.shutdown();
     }
 }
@@ -4,12 +4,21 @@ import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
 import org.apache.commons.io.IOUtils;
 
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DownloadTask {
 
@@ -18,40 +27,125 @@ public class DownloadTask {
     public final long expectedSize;
 
     protected final DownloadDispatcher dispatcher;
-    private final URI requestUri;
+    private final MirrorPool mirrors;
+    private final String path;
+    private volatile MirrorPool.Mirror mirror;
+    private MirrorPool.Mirror failedMirror;
+    private long attemptBytes;
 
     public String fileName;
 
     public int failedAttempts = 0;
 
-    public DownloadTask(DownloadDispatcher dispatcher, String url, String fileName, long expectedSize) {
+    private String resumeValidator;
+
+    public static final String SEGMENTED_FILE_SUFFIX = ".rpu_seg";
+
+    private int segmentCount = 0;
+    private long[] segmentDone;
+    /** Mirror the finished segments and the validator were fetched from, which is what If-Range is checked against. */
+    private MirrorPool.Mirror segmentMirror;
+    private final AtomicInteger activeSegments = new AtomicInteger(0);
+
+    /** The path is appended to the base URL of whichever mirror the file is fetched from. */
+    public DownloadTask(DownloadDispatcher dispatcher, MirrorPool mirrors, String path, String fileName, long expectedSize) {
         this.dispatcher = dispatcher;
-        this.requestUri = URI.create(url);
+        this.mirrors = mirrors;
+        this.path = path;
         this.fileName = fileName;
         this.expectedSize = expectedSize;
     }
 
-    public void runBlocking(OutputStream target) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) requestUri.toURL().openConnection();
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("User-Agent", "ResourcePackUpdater/" + ResourcePackUpdater.MOD_VERSION + " +https://www.zbx1425.cn");
-        connection.setRequestProperty("Accept-Encoding", "gzip");
-        connection.setConnectTimeout(20000);
-        connection.setReadTimeout(20000);
+    /** Makes one attempt, on the mirror that looks fastest right now and not on the one the last attempt failed on. */
+    public void runBlocking(PackOutputStream target) throws IOException {
+        MirrorPool.Mirror attemptMirror = mirrors.acquire(failedMirror);
+        mirror = attemptMirror;
+        attemptBytes = 0;
+        long startTime = System.nanoTime();
+        try {
+            runOnMirror(target);
+        } catch (Exception ex) {
+            mirrors.onFailure(attemptMirror, attemptBytes);
+            failedMirror = attemptMirror;
+            throw ex;
+        }
+        mirrors.onSuccess(attemptMirror, attemptBytes, System.nanoTime() - startTime);
+        failedMirror = null;
+    }
 
-        if (connection.getResponseCode() >= 400) {
-            throw new IOException("Server returned HTTP " + connection.getResponseCode() + " "
-                    + new String(IOUtils.toByteArray(connection.getErrorStream()), StandardCharsets.UTF_8));
+    private URI getRequestUri() {
+        return URI.create(mirror.baseUrl + path);
+    }
+
+    /** Name of the mirror of the current or last attempt, null if there is only one source. */
+    public String getMirrorName() {
+        MirrorPool.Mirror currentMirror = mirror;
+        return mirrors.size() > 1 && currentMirror != null ? currentMirror.name : null;
+    }
+
+    private void runOnMirror(PackOutputStream target) throws IOException {
+        if (segmentCount == 0) planSegments();
+        if (segmentCount > 1) {
+            try {
+                runSegmented(target);
+                return;
+            } catch (SegmentRestartException ex) {
+                if (!ex.rangesUnsupported) throw ex;
+                // Not a failure of the transfer, just use a single stream instead
+                segmentCount = 1;
+            }
+        }
+        dispatcher.acquireConnection();
+        try {
+            runSingleStream(target);
+        } finally {
+            dispatcher.releaseConnection();
+        }
+    }
+
+    private void runSingleStream(PackOutputStream target) throws IOException {
+        long resumeOffset = target.getBytesWritten();
+        boolean resuming = resumeOffset > 0 && resumeValidator != null;
+        if (resumeOffset > 0 && !resuming) {
+            restartFromZero(target);
+            resumeOffset = 0;
+        }
+
+        HttpRequest.Builder request = PackHttpClient.newRequest(getRequestUri());
+        if (resuming) {
+            // Ask for the identity encoding, so that the range refers to the bytes already stored
+            request.header("Accept-Encoding", "identity");
+            request.header("Range", "bytes=" + resumeOffset + "-");
+            request.header("If-Range", resumeValidator);
+        } else {
+            request.header("Accept-Encoding", "gzip");
         }
 
-        totalBytes = connection.getContentLengthLong();
-        if (totalBytes == -1) totalBytes = expectedSize;
+        HttpResponse<InputStream> response;
+        try {
+            response = PackHttpClient.send(request.build());
+        } catch (PackHttpClient.HttpStatusException ex) {
+            // Range Not Satisfiable, the partial file is of no use
+            if (ex.statusCode == 416) restartFromZero(target);
+            throw ex;
+        }
+
+        if (resuming && !isMatchingPartialResponse(response, resumeOffset)) {
+            // The server ignored the range or the file has changed, so this is a full response
+            restartFromZero(target);
+            resumeOffset = 0;
+        }
+        if (resumeOffset == 0) {
+            resumeValidator = getResumeValidator(response);
+        }
+
+        long contentLength = PackHttpClient.getContentLength(response);
+        totalBytes = contentLength == -1 ? expectedSize : resumeOffset + contentLength;
         final long[] accountedAmount = {0};
 
         try {
-            try (BufferedOutputStream bos = new BufferedOutputStream(target);
-                 InputStream inputStream = unwrapHttpResponse(connection)) {
-                final ProgressOutputStream pOfs = new ProgressOutputStream(bos, new ProgressOutputStream.WriteListener() {
+            try (InputStream inputStream = PackHttpClient.unwrapHttpResponse(response)) {
+                final ProgressOutputStream pOfs = new ProgressOutputStream(target, new ProgressOutputStream.WriteListener() {
                     final long noticeDivisor = 8192;
 
                     @Override
@@ -65,26 +159,217 @@ public class DownloadTask {
                 });
                 IOUtils.copy(new BufferedInputStream(inputStream), pOfs);
             }
+            if (PackHttpClient.isIdentityEncoded(response) && contentLength != -1
+                    && target.getBytesWritten() - resumeOffset < contentLength) {
+                throw new IOException("Connection closed after " + (target.getBytesWritten() - resumeOffset)
+                        + " of " + contentLength + " bytes");
+            }
+        } catch (Exception ex) {
+            // Bytes that reached the target are kept for the next attempt to resume from
+            long keptAmount = target.getBytesWritten() - resumeOffset;
+            attemptBytes = keptAmount;
+            dispatcher.onDownloadProgress(keptAmount - accountedAmount[0]);
+            downloadedBytes = target.getBytesWritten();
+            throw ex;
+        }
+        attemptBytes = target.getBytesWritten() - resumeOffset;
+        try {
             target.close();
         } catch (Exception ex) {
-            dispatcher.onDownloadProgress(-accountedAmount[0]);
+            // Verification failed and the file is discarded, the next attempt starts over
+            dispatcher.onDownloadProgress(-(resumeOffset + accountedAmount[0]));
             downloadedBytes = 0;
+            resumeValidator = null;
             throw ex;
         }
-        dispatcher.onDownloadProgress(totalBytes - accountedAmount[0]);
+        dispatcher.onDownloadProgress(totalBytes - resumeOffset - accountedAmount[0]);
         downloadedBytes = totalBytes;
     }
 
-    private static InputStream unwrapHttpResponse(HttpURLConnection connection) throws IOException {
-        String contentEncoding = connection.getContentEncoding();
-        if (contentEncoding == null || contentEncoding.isEmpty()) {
-            return connection.getInputStream();
-        } else if ("gzip".equalsIgnoreCase(contentEncoding)) {
-            return new GZIPInputStream(connection.getInputStream());
-        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
-            return new InflaterInputStream(connection.getInputStream());
+    private void planSegments() {
+        long threshold = ResourcePackUpdater.CONFIG.segmentedDownloadThreshold.value * 1048576L;
+        int maxSegments = ResourcePackUpdater.CONFIG.downloadSegments.value;
+        if (threshold <= 0 || maxSegments < 2 || expectedSize < threshold) {
+            segmentCount = 1;
         } else {
-            throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+            // Keep segments from getting too small to be worth a connection of their own
+            segmentCount = (int) Math.max(2, Math.min(maxSegments, expectedSize / (threshold / 2)));
+            segmentDone = new long[segmentCount];
+        }
+    }
+
+    private long getSegmentStart(int index) {
+        return expectedSize * index / segmentCount;
+    }
+
+    private void runSegmented(PackOutputStream target) throws IOException {
+        if (target.getBytesWritten() > 0) restartFromZero(target);
+        Path assembledFile = target.getTargetPath().resolveSibling(target.getTargetPath().getFileName() + SEGMENTED_FILE_SUFFIX);
+        totalBytes = expectedSize;
+        if (segmentMirror != mirror) {
+            // Another mirror would not match the validator and answer with the whole file, so start over here
+            discardSegments(assembledFile);
+            segmentMirror = mirror;
         }
+
+        try (FileChannel channel = FileChannel.open(assembledFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (downloadedBytes == 0) {
+                // Preallocate, so that segments can be written at their positions in any order
+                channel.truncate(0);
+                if (expectedSize > 0) channel.write(ByteBuffer.wrap(new byte[1]), expectedSize - 1);
+            }
+            List<Future<?>> segmentFutures = new ArrayList<>();
+            for (int i = 0; i < segmentCount; i++) {
+                final int index = i;
+                segmentFutures.add(dispatcher.segmentExecutor.submit(() -> {
+                    fetchSegment(index, channel);
+                    return null;
+                }));
+            }
+            IOException segmentException = null;
+            for (Future<?> future : segmentFutures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if (segmentException == null || ex.getCause() instanceof SegmentRestartException) {
+                        segmentException = ex.getCause() instanceof IOException
+                                ? (IOException) ex.getCause() : new IOException(ex.getCause());
+                    }
+                } catch (InterruptedException ex) {
+                    for (Future<?> other : segmentFutures) other.cancel(true);
+                    throw new IOException(ex);
+                }
+            }
+            if (segmentException != null) throw segmentException;
+        } catch (SegmentRestartException ex) {
+            discardSegments(assembledFile);
+            throw ex;
+        }
+
+        try {
+            target.closeWithContent(assembledFile);
+        } catch (Exception ex) {
+            // Verification failed and the file is discarded, the next attempt starts over
+            discardSegments(assembledFile);
+            throw ex;
+        }
+        activeSegments.set(0);
+    }
+
+    private void fetchSegment(int index, FileChannel channel) throws IOException {
+        long position = getSegmentStart(index) + segmentDone[index];
+        long end = getSegmentStart(index + 1);
+        if (position >= end) return;
+
+        dispatcher.acquireConnection();
+        activeSegments.incrementAndGet();
+        try {
+            String validator = resumeValidator;
+            HttpRequest.Builder request = PackHttpClient.newRequest(getRequestUri())
+                    .header("Accept-Encoding", "identity")
+                    .header("Range", "bytes=" + position + "-" + (end - 1));
+            if (validator != null) request.header("If-Range", validator);
+
+            HttpResponse<InputStream> response;
+            try {
+                response = PackHttpClient.send(request.build());
+            } catch (PackHttpClient.HttpStatusException ex) {
+                if (ex.statusCode != 416) throw ex;
+                throw new SegmentRestartException("Server rejected the range of segment " + index, false);
+            }
+            if (!isMatchingPartialResponse(response, position)) {
+                response.body().close();
+                if (validator == null) {
+                    throw new SegmentRestartException("Server does not support ranged requests", true);
+                } else {
+                    throw new SegmentRestartException("File changed on server during download", false);
+                }
+            }
+            String responseValidator = getResumeValidator(response);
+            synchronized (this) {
+                if (resumeValidator == null) {
+                    resumeValidator = responseValidator;
+                } else if (responseValidator != null && !responseValidator.equals(resumeValidator)) {
+                    throw new SegmentRestartException("File changed on server during download", false);
+                }
+            }
+
+            try (InputStream inputStream = PackHttpClient.getRawBody(response)) {
+                byte[] buffer = new byte[65536];
+                int n;
+                while (position < end && (n = inputStream.read(buffer, 0, (int) Math.min(buffer.length, end - position))) != -1) {
+                    ByteBuffer src = ByteBuffer.wrap(buffer, 0, n);
+                    while (src.hasRemaining()) position += channel.write(src, position);
+                    onSegmentProgress(index, n);
+                }
+            }
+            if (position < end) {
+                throw new IOException("Connection closed with " + (end - position) + " bytes left in segment " + index);
+            }
+        } finally {
+            activeSegments.decrementAndGet();
+            dispatcher.releaseConnection();
+        }
+    }
+
+    private synchronized void onSegmentProgress(int index, long deltaBytes) {
+        segmentDone[index] += deltaBytes;
+        downloadedBytes += deltaBytes;
+        attemptBytes += deltaBytes;
+        dispatcher.onDownloadProgress(deltaBytes);
+    }
+
+    private synchronized void discardSegments(Path assembledFile) {
+        dispatcher.onDownloadProgress(-downloadedBytes);
+        downloadedBytes = 0;
+        resumeValidator = null;
+        Arrays.fill(segmentDone, 0);
+        try {
+            Files.deleteIfExists(assembledFile);
+        } catch (IOException ignored) { }
+    }
+
+    public String getSegmentState() {
+        if (segmentCount < 2) return null;
+        int segmentsFinished = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            if (getSegmentStart(i) + segmentDone[i] >= getSegmentStart(i + 1)) segmentsFinished++;
+        }
+        return String.format("%d/%d, %d ACTIVE", segmentsFinished, segmentCount, activeSegments.get());
+    }
+
+    private static class SegmentRestartException extends IOException {
+
+        public final boolean rangesUnsupported;
+
+        public SegmentRestartException(String message, boolean rangesUnsupported) {
+            super(message);
+            this.rangesUnsupported = rangesUnsupported;
+        }
+    }
+
+    private void restartFromZero(PackOutputStream target) throws IOException {
+        dispatcher.onDownloadProgress(-target.getBytesWritten());
+        downloadedBytes = 0;
+        resumeValidator = null;
+        target.reset();
+    }
+
+    private static boolean isMatchingPartialResponse(HttpResponse<?> response, long resumeOffset) {
+        if (response.statusCode() != 206) return false;
+        if (!PackHttpClient.isIdentityEncoded(response)) return false;
+        String contentRange = PackHttpClient.getHeader(response, "Content-Range");
+        return contentRange != null && contentRange.trim().startsWith("bytes " + resumeOffset + "-");
+    }
+
+    private static String getResumeValidator(HttpResponse<?> response) {
+        String acceptRanges = PackHttpClient.getHeader(response, "Accept-Ranges");
+        if (acceptRanges != null && acceptRanges.trim().equalsIgnoreCase("none")) return null;
+        // Ranges would refer to the compressed bytes, which are not what gets stored
+        if (!PackHttpClient.isIdentityEncoded(response)) return null;
+        String eTag = PackHttpClient.getHeader(response, "ETag");
+        // Weak validators are not allowed in If-Range
+        if (eTag != null && !eTag.startsWith("W/")) return eTag;
+        return PackHttpClient.getHeader(response, "Last-Modified");
     }
 }
@@ -0,0 +1,109 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sources that serve the same pack, which the downloads are spread over. Each file goes to the mirror
+ * that would get through its queue soonest, judged by the throughput observed so far and the number of
+ * transfers already running on it. A mirror that fails is left alone for a while, growing with each failure.
+ */
+public class MirrorPool {
+
+    private static final double SMOOTH_FACTOR = 0.3;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    public static class Mirror {
+
+        public final String name;
+        public final String baseUrl;
+
+        private double bytesPerSecond;
+        private int activeTransfers = 0;
+        private int consecutiveFailures = 0;
+        private long disabledUntil = 0;
+        private long downloadedBytes = 0;
+
+        Mirror(String name, String baseUrl, double bytesPerSecond) {
+            this.name = name;
+            this.baseUrl = baseUrl;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public synchronized long getDownloadedBytes() {
+            return downloadedBytes;
+        }
+    }
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+
+    /** The source the metadata came from, which is used alone unless mirrors are added. */
+    public MirrorPool(String name, String baseUrl) {
+        mirrors.add(new Mirror(name, baseUrl, 0));
+    }
+
+    /** Adds a mirror, with the throughput a probe measured as a first estimate (0 if unknown). */
+    public void addMirror(String name, String baseUrl, double bytesPerSecond) {
+        for (Mirror mirror : mirrors) {
+            if (mirror.baseUrl.equals(baseUrl)) {
+                mirror.bytesPerSecond = Math.max(mirror.bytesPerSecond, bytesPerSecond);
+                return;
+            }
+        }
+        mirrors.add(new Mirror(name, baseUrl, bytesPerSecond));
+    }
+
+    public List<Mirror> getMirrors() {
+        return mirrors;
+    }
+
+    public int size() {
+        return mirrors.size();
+    }
+
+    /** Picks the mirror for the next transfer, avoiding the given one (where it just failed) if there is another. */
+    public synchronized Mirror acquire(Mirror avoid) {
+        long now = System.currentTimeMillis();
+        // Mirrors not measured yet are assumed as fast as the best one, so that each gets tried
+        double bestKnownSpeed = 1;
+        for (Mirror mirror : mirrors) bestKnownSpeed = Math.max(bestKnownSpeed, mirror.bytesPerSecond);
+
+        Mirror best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Mirror mirror : mirrors) {
+            if (mirror == avoid && mirrors.size() > 1) continue;
+            double speed = mirror.bytesPerSecond > 0 ? mirror.bytesPerSecond : bestKnownSpeed;
+            double score = (mirror.activeTransfers + 1) / speed;
+            // All in back-off: use the one that comes back first
+            if (mirror.disabledUntil > now) score = Double.MAX_VALUE / 2 + (mirror.disabledUntil - now);
+            if (best == null || score < bestScore) {
+                best = mirror;
+                bestScore = score;
+            }
+        }
+        best.activeTransfers++;
+        return best;
+    }
+
+    public synchronized void onSuccess(Mirror mirror, long bytes, long elapsedNanos) {
+        mirror.activeTransfers--;
+        mirror.consecutiveFailures = 0;
+        mirror.disabledUntil = 0;
+        mirror.downloadedBytes += bytes;
+        // Small files say more about latency than throughput
+        if (bytes >= 65536 && elapsedNanos > 0) {
+            double speed = bytes * 1e9 / elapsedNanos;
+            mirror.bytesPerSecond = mirror.bytesPerSecond <= 0 ? speed
+                    : mirror.bytesPerSecond * (1 - SMOOTH_FACTOR) + speed * SMOOTH_FACTOR;
+        }
+    }
+
+    public synchronized void onFailure(Mirror mirror, long bytes) {
+        mirror.activeTransfers--;
+        mirror.downloadedBytes += bytes;
+        if (mirrors.size() < 2) return;
+        mirror.consecutiveFailures++;
+        mirror.disabledUntil = System.currentTimeMillis()
+                + Math.min(MAX_BACKOFF_MILLIS, 1000L << Math.min(mirror.consecutiveFailures, 16));
+    }
+}
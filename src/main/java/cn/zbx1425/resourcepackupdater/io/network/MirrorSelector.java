@@ -0,0 +1,156 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import cn.zbx1425.resourcepackupdater.Config;
+import cn.zbx1425.resourcepackupdater.io.ProgressReceiver;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Races the configured sources against each other, for when they are mirrors of the same pack.
+ * Each one is probed in parallel: its metadata.sha1 for the latency and the checksum it serves,
+ * then a ranged GET of the start of its metadata.json for the throughput.
+ */
+public class MirrorSelector {
+
+    private static final int PROBE_BYTES = 256 * 1024;
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(5);
+    private static final long PROBE_DEADLINE_MILLIS = 8000;
+    /** Sources are ranked by the estimated time to fetch this much, which weighs latency against throughput. */
+    private static final double REFERENCE_BYTES = 1024 * 1024;
+
+    public static class ProbeResult {
+
+        public final Config.SourceProperty source;
+        /** Null if the source does not have a directory checksum. */
+        public final byte[] checksum;
+        public final long latencyMillis;
+        public final double bytesPerSecond;
+
+        public ProbeResult(Config.SourceProperty source, byte[] checksum, long latencyMillis, double bytesPerSecond) {
+            this.source = source;
+            this.checksum = checksum;
+            this.latencyMillis = latencyMillis;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public double getEstimatedSeconds() {
+            return latencyMillis / 1000.0 + REFERENCE_BYTES / Math.max(bytesPerSecond, 1);
+        }
+    }
+
+    public static ProbeResult probe(Config.SourceProperty source) throws Exception {
+        byte[] checksum = null;
+        long latencyNanos = -1;
+        if (source.hasDirHash) {
+            long start = System.nanoTime();
+            HttpResponse<InputStream> response = PackHttpClient.send(PackHttpClient.newRequest(
+                    URI.create(source.baseUrl + "/metadata.sha1")).timeout(PROBE_TIMEOUT).build());
+            latencyNanos = System.nanoTime() - start;
+            try (InputStream inputStream = PackHttpClient.unwrapHttpResponse(response)) {
+                checksum = new RemoteMetadata(source.baseUrl).parseDirChecksum(
+                        new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+
+        long start = System.nanoTime();
+        HttpResponse<InputStream> response = PackHttpClient.send(PackHttpClient.newRequest(
+                URI.create(source.baseUrl + "/metadata.json"))
+                .header("Range", "bytes=0-" + (PROBE_BYTES - 1))
+                .timeout(PROBE_TIMEOUT).build());
+        if (latencyNanos < 0) latencyNanos = System.nanoTime() - start;
+        long receivedBytes = 0;
+        // A server that ignores the range sends the whole file, of which only the start is read
+        try (InputStream inputStream = PackHttpClient.getRawBody(response)) {
+            byte[] buffer = new byte[16384];
+            int n;
+            while (receivedBytes < PROBE_BYTES && (n = inputStream.read(buffer)) != -1) receivedBytes += n;
+        }
+        long elapsedNanos = Math.max(System.nanoTime() - start, 1);
+        return new ProbeResult(source, checksum, latencyNanos / 1000000, receivedBytes * 1e9 / elapsedNanos);
+    }
+
+    /** Probes all sources in parallel. Those that fail or do not answer in time are left out. */
+    public static List<ProbeResult> probeAll(List<Config.SourceProperty> sources, ProgressReceiver cb) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(sources.size(), runnable -> {
+            Thread thread = new Thread(runnable, "RPU Mirror Probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<ProbeResult>> futures = new ArrayList<>();
+            for (Config.SourceProperty source : sources) futures.add(executor.submit(() -> probe(source)));
+            long deadline = System.currentTimeMillis() + PROBE_DEADLINE_MILLIS;
+            List<ProbeResult> results = new ArrayList<>();
+            for (int i = 0; i < sources.size(); i++) {
+                String name = sources.get(i).name;
+                try {
+                    ProbeResult result = futures.get(i).get(
+                            Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                    cb.printLog(String.format("  %s: %d ms, %d KiB/s", name, result.latencyMillis,
+                            (long) (result.bytesPerSecond / 1024)));
+                    results.add(result);
+                } catch (ExecutionException ex) {
+                    cb.printLog(String.format("  %s: %s", name, ex.getCause() instanceof PackHttpClient.HttpStatusException
+                            ? "HTTP " + ((PackHttpClient.HttpStatusException) ex.getCause()).statusCode : ex.getCause()));
+                } catch (TimeoutException ex) {
+                    cb.printLog(String.format("  %s: no answer in time", name));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Picks the fastest of the probed sources serving the same checksum as the current one, so that a source
+     * with a different pack is never picked. If the current source gave no checksum (it did not answer, or has
+     * none), the checksum served by the most sources is taken instead. Returns the current source if there is
+     * no such checksum, or a tie between several.
+     */
+    public static Config.SourceProperty selectFastest(List<ProbeResult> results, Config.SourceProperty current) {
+        byte[] checksum = null;
+        for (ProbeResult result : results) {
+            if (result.source.equals(current)) checksum = result.checksum;
+        }
+        if (checksum == null) checksum = getMostServedChecksum(results);
+        if (checksum == null) return current;
+        ProbeResult best = null;
+        for (ProbeResult result : results) {
+            if (!Arrays.equals(checksum, result.checksum)) continue;
+            if (best == null || result.getEstimatedSeconds() < best.getEstimatedSeconds()) best = result;
+        }
+        return best != null ? best.source : current;
+    }
+
+    private static byte[] getMostServedChecksum(List<ProbeResult> results) {
+        byte[] mostServed = null;
+        long mostCount = 0;
+        boolean tied = false;
+        for (ProbeResult result : results) {
+            if (result.checksum == null || Arrays.equals(result.checksum, mostServed)) continue;
+            long count = results.stream().filter(other -> Arrays.equals(result.checksum, other.checksum)).count();
+            if (count > mostCount) {
+                mostServed = result.checksum;
+                mostCount = count;
+                tied = false;
+            } else if (count == mostCount) {
+                tied = true;
+            }
+        }
+        return tied ? null : mostServed;
+    }
+}
@@ -0,0 +1,180 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+import org.apache.commons.io.IOUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The HTTP client shared by all requests of the updater, so that connections (and with HTTP/2,
+ * a single multiplexed connection per server) are reused instead of handshaking for every file.
+ */
+public class PackHttpClient {
+
+    public static final Duration TIMEOUT = Duration.ofSeconds(20);
+
+    private static HttpClient client;
+
+    private static final ScheduledExecutorService IDLE_WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RPU HTTP Idle Watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static synchronized HttpClient getClient() {
+        if (client == null) {
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .connectTimeout(TIMEOUT);
+            if (ResourcePackUpdater.CONFIG.disableCertificateCheck.value) {
+                builder.sslContext(DummyTrustManager.UNSAFE_CONTEXT);
+            }
+            client = builder.build();
+        }
+        return client;
+    }
+
+    public static HttpRequest.Builder newRequest(URI uri) {
+        return HttpRequest.newBuilder(uri)
+                .GET()
+                .header("User-Agent", "ResourcePackUpdater/" + ResourcePackUpdater.MOD_VERSION + " +https://www.zbx1425.cn")
+                .timeout(TIMEOUT);
+    }
+
+    /**
+     * Sends the request and waits for the response headers. The body is streamed as it arrives,
+     * and reading it fails if no data comes in for longer than the timeout.
+     */
+    public static HttpResponse<InputStream> send(HttpRequest request) throws IOException {
+        CompletableFuture<HttpResponse<InputStream>> future =
+                getClient().sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        HttpResponse<InputStream> response;
+        try {
+            response = future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+        if (response.statusCode() >= 400) {
+            try (InputStream errorStream = response.body()) {
+                throw new HttpStatusException(response.statusCode(),
+                        new String(IOUtils.toByteArray(errorStream), StandardCharsets.UTF_8));
+            }
+        }
+        return response;
+    }
+
+    public static String getHeader(HttpResponse<?> response, String name) {
+        return response.headers().firstValue(name).orElse(null);
+    }
+
+    public static long getContentLength(HttpResponse<?> response) {
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    public static boolean isIdentityEncoded(HttpResponse<?> response) {
+        String contentEncoding = getHeader(response, "Content-Encoding");
+        return contentEncoding == null || contentEncoding.isEmpty() || "identity".equalsIgnoreCase(contentEncoding);
+    }
+
+    /** The raw body, with the idle timeout applied but without decoding its Content-Encoding. */
+    public static InputStream getRawBody(HttpResponse<InputStream> response) {
+        return new IdleTimeoutInputStream(response.body());
+    }
+
+    public static InputStream unwrapHttpResponse(HttpResponse<InputStream> response) throws IOException {
+        String contentEncoding = getHeader(response, "Content-Encoding");
+        InputStream body = getRawBody(response);
+        if (contentEncoding == null || contentEncoding.isEmpty() || "identity".equalsIgnoreCase(contentEncoding)) {
+            return body;
+        } else if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(body);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            return new InflaterInputStream(body);
+        } else {
+            body.close();
+            throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        }
+    }
+
+    public static class HttpStatusException extends IOException {
+
+        public final int statusCode;
+
+        public HttpStatusException(int statusCode, String body) {
+            super("Server returned HTTP " + statusCode + " " + body);
+            this.statusCode = statusCode;
+        }
+    }
+
+    private static class IdleTimeoutInputStream extends FilterInputStream {
+
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile boolean timedOut = false;
+        private ScheduledFuture<?> watchdog;
+
+        IdleTimeoutInputStream(InputStream in) {
+            super(in);
+            watchdog = IDLE_WATCHDOG.scheduleAtFixedRate(() -> {
+                if (timedOut) {
+                    watchdog.cancel(false);
+                } else if (System.currentTimeMillis() - lastActivity > TIMEOUT.toMillis()) {
+                    timedOut = true;
+                    try {
+                        // Unblocks the thread waiting in read()
+                        in.close();
+                    } catch (IOException ignored) { }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int result = super.read();
+                onRead(result);
+                return result;
+            } catch (IOException ex) {
+                throw timedOut ? new HttpTimeoutException("Read timed out") : ex;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                int result = super.read(b, off, len);
+                onRead(result);
+                return result;
+            } catch (IOException ex) {
+                throw timedOut ? new HttpTimeoutException("Read timed out") : ex;
+            }
+        }
+
+        private void onRead(int result) {
+            lastActivity = System.currentTimeMillis();
+            if (result == -1) watchdog.cancel(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            watchdog.cancel(false);
+            super.close();
+        }
+    }
+}
@@ -1,64 +1,204 @@
 package cn.zbx1425.resourcepackupdater.io.network;
 
 import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
+import cn.zbx1425.resourcepackupdater.drm.ChunkedEncryptor;
 import cn.zbx1425.resourcepackupdater.io.HashCache;
 import org.apache.commons.codec.binary.Hex;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 public class PackOutputStream extends OutputStream {
 
-    private final boolean encrypt;
+    public static final String TEMP_FILE_SUFFIX = ".rpu_part";
+
     private final Path target;
+    private final Path tempFile;
     private final HashCache hashCache;
     private final byte[] expectedSha;
-    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private final FileChannel channel;
+    private final MessageDigest digest;
+    private ChunkedEncryptor cipher;
+    private byte[] key;
+    private final boolean encrypt;
+    private long bytesWritten = 0;
 
     private boolean closed = false;
 
-    public PackOutputStream(Path target, boolean encrypt, HashCache hashCache, byte[] expectedSha) {
-        this.encrypt = encrypt;
+    public PackOutputStream(Path target, boolean encrypt, HashCache hashCache, byte[] expectedSha) throws IOException {
         this.target = target;
+        this.encrypt = encrypt;
+        this.tempFile = target.resolveSibling(target.getFileName() + TEMP_FILE_SUFFIX);
         this.expectedSha = expectedSha;
         this.hashCache = hashCache;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        this.channel = FileChannel.open(tempFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            beginContent();
+        } catch (IOException ex) {
+            discard();
+            throw ex;
+        }
+    }
+
+    public Path getTargetPath() {
+        return target;
+    }
+
+    /** Number of content bytes accepted so far, which is also the offset a download can be resumed from. */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** Drops everything written so far, so that the download can start over from the first byte. */
+    public void reset() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        channel.truncate(0);
+        channel.position(0);
+        digest.reset();
+        bytesWritten = 0;
+        beginContent();
+    }
+
+    /** Gives up on this download and removes the partial file. */
+    public void abort() {
+        if (closed) return;
+        closed = true;
+        discard();
+    }
+
+    private void beginContent() throws IOException {
+        if (encrypt) {
+            key = AssetEncryption.generateKey();
+            cipher = new ChunkedEncryptor(key);
+            // Content length is not known yet, it gets patched in on close
+            writeFully(AssetEncryption.encodeChunkedHeader(key, 0));
+        } else {
+            key = null;
+            cipher = null;
+        }
     }
 
     @Override
     public void write(int b) throws IOException {
-        buffer.write(b);
+        write(new byte[] { (byte)b }, 0, 1);
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        buffer.write(b);
+        write(b, 0, b.length);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        buffer.write(b, off, len);
+        if (closed) throw new IOException("Stream closed");
+        digest.update(b, off, len);
+        bytesWritten += len;
+        if (cipher != null) {
+            writeFully(ByteBuffer.wrap(cipher.update(b, off, len)));
+        } else {
+            writeFully(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    /**
+     * Uses a file assembled elsewhere (e.g. by a segmented download) as the whole content,
+     * then verifies and commits it the same way as close().
+     */
+    public void closeWithContent(Path content) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (bytesWritten > 0) reset();
+        byte[] buffer = new byte[65536];
+        try (InputStream inputStream = Files.newInputStream(content)) {
+            int n;
+            while ((n = inputStream.read(buffer)) != -1) {
+                if (cipher != null) {
+                    write(buffer, 0, n);
+                } else {
+                    // Only digest it here, the file itself is taken over below instead of copied
+                    digest.update(buffer, 0, n);
+                    bytesWritten += n;
+                }
+            }
+        } catch (IOException ex) {
+            abort();
+            throw ex;
+        }
+        try {
+            if (cipher != null) {
+                Files.deleteIfExists(content);
+            } else {
+                channel.close();
+                Files.move(content, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            abort();
+            throw ex;
+        }
+        close();
     }
 
     @Override
     public void close() throws IOException {
         if (closed) return;
         closed = true;
-        if (encrypt) {
-            AssetEncryption.writeEncrypted(buffer.toByteArray(), target.toFile());
-        } else {
-            try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(target.toFile()))) {
-                bos.write(buffer.toByteArray());
+        try {
+            if (cipher != null) {
+                writeFully(ByteBuffer.wrap(cipher.doFinal()));
+                channel.position(0);
+                writeFully(AssetEncryption.encodeChunkedHeader(key, cipher.getPlainLength()));
             }
-        }
-        byte[] localSha = hashCache.getDigestNoCache(target.toFile());
-        if (!Arrays.equals(localSha, expectedSha)) {
-            throw new IOException("SHA1 mismatch: " + Hex.encodeHexString(localSha) + " downloaded, " +
-                    Hex.encodeHexString(expectedSha) + " expected");
+            channel.close();
+
+            byte[] localSha = digest.digest();
+            if (!Arrays.equals(localSha, expectedSha)) {
+                throw new IOException("SHA1 mismatch: " + Hex.encodeHexString(localSha) + " downloaded, " +
+                        Hex.encodeHexString(expectedSha) + " expected");
+            }
+            try {
+                Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            hashCache.putDigest(target, localSha);
+        } catch (IOException ex) {
+            discard();
+            throw ex;
         }
         super.close();
     }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    private void discard() {
+        try {
+            channel.close();
+        } catch (IOException ignored) { }
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (IOException ignored) { }
+    }
 }
@@ -0,0 +1,238 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
+import cn.zbx1425.resourcepackupdater.drm.ChunkedAssetFile;
+import cn.zbx1425.resourcepackupdater.io.FileIndex;
+import cn.zbx1425.resourcepackupdater.io.FileProperty;
+import cn.zbx1425.resourcepackupdater.io.HashCache;
+import cn.zbx1425.resourcepackupdater.io.ProgressReceiver;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Updates files from the version already on disk with the binary patches advertised in metadata v3,
+ * instead of downloading them whole.
+ * <p>
+ * Each patch is listed with its own "sha1" and "size", is served at
+ * /patches/&lt;old sha1&gt;-&lt;new sha1&gt;.rpupatch and is a gzip stream of
+ * the magic "RPUPAT10" followed by operations, each starting with one byte:
+ * 1 = copy (long offset, int length) from the old file, 2 = insert (int length, bytes), 0 = end.
+ * <p>
+ * Patches are fetched in parallel, as many at a time as downloads may run, and applied as they arrive.
+ */
+public class PatchApplier {
+
+    private static final byte[] PATCH_MAGIC = "RPUPAT10".getBytes(StandardCharsets.UTF_8);
+
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_INSERT = 2;
+
+    private final RemoteMetadata remoteMetadata;
+    private final String baseDir;
+    private final HashCache hashCache;
+
+    public final Set<String> patchedFiles = ConcurrentHashMap.newKeySet();
+    public long downloadedBytes;
+    private final AtomicLong fetchedBytes = new AtomicLong(0);
+
+    public PatchApplier(RemoteMetadata remoteMetadata, String baseDir, HashCache hashCache) {
+        this.remoteMetadata = remoteMetadata;
+        this.baseDir = baseDir;
+        this.hashCache = hashCache;
+    }
+
+    /** Picks the files that have a patch from their local version to the remote one. */
+    public List<String> getPatchableFiles(List<String> filesToUpdate, FileIndex localFiles) {
+        return filesToUpdate.stream().filter(file -> getPatch(file, localFiles.getHash(file)) != null).toList();
+    }
+
+    private FileProperty getPatch(String file, byte[] localHash) {
+        Map<String, FileProperty> filePatches = remoteMetadata.patches.get(file);
+        if (filePatches == null || localHash == null) return null;
+        return filePatches.get(Hex.encodeHexString(localHash));
+    }
+
+    /**
+     * Patches each of the given files, verified against the remote metadata.
+     * Files that end up missing from patchedFiles are to be downloaded in full afterwards.
+     */
+    public void applyAll(List<String> files, FileIndex localFiles, ProgressReceiver cb) throws InterruptedException {
+        long totalPatchBytes = 0;
+        for (String file : files) totalPatchBytes += getPatch(file, localFiles.getHash(file)).size;
+
+        // Patching happens on the pool; this thread only polls progress,
+        // since the progress receiver must stay on the thread that owns the GL context.
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(files.size(), ResourcePackUpdater.CONFIG.maxDownloadConcurrency.value)));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String file : files) {
+                byte[] localHash = localFiles.getHash(file);
+                FileProperty patch = getPatch(file, localHash);
+                futures.add(executor.submit(() -> {
+                    try {
+                        apply(file, localHash, patch);
+                        patchedFiles.add(file);
+                    } catch (IOException ex) {
+                        // Left for the full download
+                        failures.add(String.format("Cannot patch %s: %s", file, ex.getMessage()));
+                    }
+                }));
+            }
+            while (!futures.stream().allMatch(Future::isDone)) {
+                while (!failures.isEmpty()) cb.printLog(failures.poll());
+                long fetched = fetchedBytes.get();
+                cb.setProgress(totalPatchBytes > 0 ? fetched * 1f / totalPatchBytes : 0, 0);
+                cb.setInfo(String.format("%d / %d", patchedFiles.size(), files.size()), String.format(
+                        ": %5d KiB / %5d KiB; %d files patched", fetched / 1024, totalPatchBytes / 1024, patchedFiles.size()));
+                Thread.sleep(1000 / 30);
+            }
+            while (!failures.isEmpty()) cb.printLog(failures.poll());
+        } finally {
+            executor.shutdownNow();
+        }
+        downloadedBytes = fetchedBytes.get();
+    }
+
+    private void apply(String file, byte[] localHash, FileProperty patch) throws IOException {
+        FileProperty remoteProperty = remoteMetadata.files.get(file);
+        String patchUrl = remoteMetadata.baseUrl + "/patches/" + Hex.encodeHexString(localHash)
+                + "-" + Hex.encodeHexString(remoteProperty.hash) + ".rpupatch";
+        HttpResponse<InputStream> response = PackHttpClient.send(PackHttpClient.newRequest(URI.create(patchUrl)).build());
+        Path targetPath = Paths.get(baseDir, file);
+        PackOutputStream target = new PackOutputStream(targetPath, remoteMetadata.encrypt, hashCache, remoteProperty.hash);
+        try (CountingInputStream countingStream = new CountingInputStream(PackHttpClient.unwrapHttpResponse(response))) {
+            DigestInputStream digestStream = new DigestInputStream(countingStream, DigestUtils.getSha1Digest());
+            try {
+                applyPatch(targetPath, digestStream, target);
+            } finally {
+                fetchedBytes.addAndGet(countingStream.getByteCount());
+            }
+            if (!Arrays.equals(digestStream.getMessageDigest().digest(), patch.hash)) {
+                throw new IOException("SHA1 mismatch of patch " + patchUrl);
+            }
+        } catch (IOException ex) {
+            target.abort();
+            throw ex;
+        }
+        // Verifies the result against the remote hash, and replaces the old file only if it matches
+        target.close();
+    }
+
+    /**
+     * Writes the content the patch makes of the old file to the target, which is left open.
+     * The patch stream is read to its end, so that its digest covers all of it, and closed.
+     */
+    static void applyPatch(Path oldFile, InputStream patchData, OutputStream target) throws IOException {
+        try (OldContent oldContent = OldContent.open(oldFile);
+             DataInputStream patchStream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(patchData)))) {
+            if (!Arrays.equals(patchStream.readNBytes(PATCH_MAGIC.length), PATCH_MAGIC)) {
+                throw new IOException("Not a patch file");
+            }
+            byte[] buffer = new byte[65536];
+            while (true) {
+                int op = patchStream.readUnsignedByte();
+                if (op == OP_END) {
+                    break;
+                } else if (op == OP_COPY) {
+                    long offset = patchStream.readLong();
+                    int length = patchStream.readInt();
+                    while (length > 0) {
+                        int n = oldContent.read(offset, buffer, Math.min(buffer.length, length));
+                        target.write(buffer, 0, n);
+                        offset += n;
+                        length -= n;
+                    }
+                } else if (op == OP_INSERT) {
+                    int length = patchStream.readInt();
+                    while (length > 0) {
+                        int n = Math.min(buffer.length, length);
+                        patchStream.readFully(buffer, 0, n);
+                        target.write(buffer, 0, n);
+                        length -= n;
+                    }
+                } else {
+                    throw new IOException("Unknown patch operation " + op);
+                }
+            }
+            // Through the gzip trailer, which checks the CRC, and whatever follows it
+            patchStream.transferTo(OutputStream.nullOutputStream());
+            patchData.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /** Random access to the plain content of the local file, decrypted in memory if it uses the old format. */
+    private static class OldContent implements Closeable {
+
+        private final FileChannel channel;
+        private final ChunkedAssetFile chunkedFile;
+        private final byte[] decrypted;
+
+        private OldContent(FileChannel channel, ChunkedAssetFile chunkedFile, byte[] decrypted) {
+            this.channel = channel;
+            this.chunkedFile = chunkedFile;
+            this.decrypted = decrypted;
+        }
+
+        static OldContent open(Path file) throws IOException {
+            FileInputStream fis = new FileInputStream(file.toFile());
+            try {
+                if (AssetEncryption.isEncrypted(fis)) {
+                    if (new DataInputStream(fis).readInt() == AssetEncryption.CHUNKED_VERSION) {
+                        return new OldContent(null, ChunkedAssetFile.open(fis.getChannel()), null);
+                    }
+                    try (InputStream inputStream = AssetEncryption.wrapInputStream(fis)) {
+                        return new OldContent(null, null, IOUtils.toByteArray(inputStream));
+                    }
+                }
+            } catch (IOException ex) {
+                fis.close();
+                throw ex;
+            }
+            fis.close();
+            return new OldContent(FileChannel.open(file, StandardOpenOption.READ), null, null);
+        }
+
+        int read(long offset, byte[] buffer, int length) throws IOException {
+            if (decrypted != null) {
+                if (offset < 0 || offset + length > decrypted.length) throw new EOFException("Copy beyond end of old file");
+                System.arraycopy(decrypted, (int) offset, buffer, 0, length);
+                return length;
+            }
+            int n = chunkedFile != null ? chunkedFile.read(offset, buffer, 0, length)
+                    : channel.read(ByteBuffer.wrap(buffer, 0, length), offset);
+            if (n <= 0) throw new EOFException("Copy beyond end of old file");
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) channel.close();
+            if (chunkedFile != null) chunkedFile.close();
+        }
+    }
+}
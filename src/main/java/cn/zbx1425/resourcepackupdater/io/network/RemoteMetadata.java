@@ -2,8 +2,10 @@ package cn.zbx1425.resourcepackupdater.io.network;
 
 import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
 import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
+import cn.zbx1425.resourcepackupdater.io.FileIndex;
 import cn.zbx1425.resourcepackupdater.io.FileProperty;
 import cn.zbx1425.resourcepackupdater.io.HashCache;
+import cn.zbx1425.resourcepackupdater.io.LocalMetadata;
 import cn.zbx1425.resourcepackupdater.io.ProgressReceiver;
 import cn.zbx1425.resourcepackupdater.util.MismatchingVersionException;
 import cn.zbx1425.resourcepackupdater.util.MtrVersion;
@@ -13,22 +15,37 @@ import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 public class RemoteMetadata {
 
+    private static final byte[] BINARY_METADATA_MAGIC = "RPUMTB10".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_BINARY_STRING_LENGTH = 1024 * 1024;
+    private static final int MAX_TREE_NODES = 128;
+    private static final int TREE_FETCH_CONCURRENCY = 8;
+
     public String baseUrl;
     public boolean encrypt = false;
     public List<String> dirs = new ArrayList<>();
-    public HashMap<String, FileProperty> files = new HashMap<>();
+    public FileIndex files = new FileIndex();
+    /** Per file, the patches that turn a previous version (keyed by its SHA1 in hex) into the current one. */
+    public HashMap<String, Map<String, FileProperty>> patches = new HashMap<>();
+    /** Root of the Merkle tree of directory hashes, if the server publishes one. */
+    public byte[] treeRoot;
+    /** Whether the server publishes metadata.bin, as its metadata.sha1 says with "binary": true. */
+    public boolean hasBinaryMetadata = false;
 
     public long downloadStartTime;
     public long downloadedBytes;
@@ -38,11 +55,17 @@ public class RemoteMetadata {
     }
 
     public byte[] fetchDirChecksum(ProgressReceiver cb) throws Exception {
-        String metaString = httpGetString(baseUrl + "/metadata.sha1", cb);
+        return parseDirChecksum(httpGetString(baseUrl + "/metadata.sha1", cb));
+    }
+
+    /** Reads metadata.sha1, which is either the bare checksum in hex or a JSON object with it and a few switches. */
+    public byte[] parseDirChecksum(String metaString) throws Exception {
         if (metaString.startsWith("{")) {
             JsonObject metadataObj = ResourcePackUpdater.JSON_PARSER.parse(metaString).getAsJsonObject();
             assertMetadataVersion(metadataObj);
             if (metadataObj.has("encrypt")) encrypt = metadataObj.get("encrypt").getAsBoolean();
+            if (metadataObj.has("tree")) treeRoot = Hex.decodeHex(metadataObj.get("tree").getAsString().toCharArray());
+            if (metadataObj.has("binary")) hasBinaryMetadata = metadataObj.get("binary").getAsBoolean();
             return Hex.decodeHex(metadataObj.get("sha1").getAsString().toCharArray());
         } else {
             return Hex.decodeHex(metaString.trim().toCharArray());
@@ -52,6 +75,17 @@ public class RemoteMetadata {
     public void fetch(ProgressReceiver cb) throws Exception {
         dirs.clear();
         files.clear();
+        patches.clear();
+        if (hasBinaryMetadata) {
+            try {
+                if (fetchBinary(cb)) return;
+            } catch (PackHttpClient.HttpStatusException ex) {
+                // Advertised but not there after all, use the JSON one
+            }
+        }
+        dirs.clear();
+        files.clear();
+        patches.clear();
         JsonObject metadataObj = ResourcePackUpdater.JSON_PARSER.parse(
                 httpGetString(baseUrl + "/metadata.json", cb)
         ).getAsJsonObject();
@@ -67,7 +101,7 @@ public class RemoteMetadata {
             for (Map.Entry<String, JsonElement> entry : metadataObj.get("files").getAsJsonObject().entrySet()) {
                 files.put(entry.getKey(), new FileProperty(entry.getValue().getAsJsonObject()));
             }
-        } else if (metadataVersion == 2) {
+        } else if (metadataVersion == 2 || metadataVersion == 3) {
             JsonObject contentObj = metadataObj.get("file_content").getAsJsonObject();
             for (Map.Entry<String, JsonElement> entry : contentObj.get("dirs").getAsJsonObject().entrySet()) {
                 dirs.add(entry.getKey());
@@ -75,12 +109,190 @@ public class RemoteMetadata {
             for (Map.Entry<String, JsonElement> entry : contentObj.get("files").getAsJsonObject().entrySet()) {
                 files.put(entry.getKey(), new FileProperty(entry.getValue().getAsJsonObject()));
             }
+            if (metadataVersion == 3 && metadataObj.has("patches")) {
+                for (Map.Entry<String, JsonElement> entry : metadataObj.get("patches").getAsJsonObject().entrySet()) {
+                    readPatches(entry.getKey(), entry.getValue().getAsJsonObject());
+                }
+            }
         } else {
             throw new MismatchingVersionException("Unsupported metadata protocol version: " + metadataVersion);
         }
     }
 
+    /**
+     * Builds the metadata from the Merkle tree on the server, fetching only the directories whose hash
+     * differs from the local one. Each directory is served at /tree/&lt;hash&gt;.json as
+     * {"dirs": {name: hash}, "files": {name: {"sha1", "size", "patches"}}}, with hashes as in
+     * {@link LocalMetadata#getTreeHashes()}. Unchanged subtrees are taken over from the local metadata.
+     * <p>
+     * The tree is walked a level at a time, with the directories of a level fetched in parallel, so the
+     * progress receiver must accept calls from several threads (e.g. a DeferredProgressReceiver).
+     * Returns false, leaving the metadata incomplete, once more than MAX_TREE_NODES directories differ:
+     * by then the single metadata.json is cheaper than a round trip per directory.
+     */
+    public boolean fetchTree(LocalMetadata localMetadata, ProgressReceiver cb) throws Exception {
+        dirs.clear();
+        files.clear();
+        patches.clear();
+        Map<String, byte[]> localHashes = localMetadata.getTreeHashes();
+        Set<String> unchangedDirs = new HashSet<>();
+        ExecutorService executor = Executors.newFixedThreadPool(TREE_FETCH_CONCURRENCY, runnable -> {
+            Thread thread = new Thread(runnable, "RPU Tree Fetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Map<String, byte[]> level = new LinkedHashMap<>();
+            level.put("", treeRoot);
+            int nodesFetched = 0;
+            while (!level.isEmpty()) {
+                List<String> changedDirs = new ArrayList<>();
+                List<Future<JsonObject>> nodeFetches = new ArrayList<>();
+                for (Map.Entry<String, byte[]> entry : level.entrySet()) {
+                    if (Arrays.equals(localHashes.get(entry.getKey()), entry.getValue())) {
+                        unchangedDirs.add(entry.getKey());
+                        continue;
+                    }
+                    changedDirs.add(entry.getKey());
+                }
+                nodesFetched += changedDirs.size();
+                if (nodesFetched > MAX_TREE_NODES) return false;
+                for (String dir : changedDirs) {
+                    String url = baseUrl + "/tree/" + Hex.encodeHexString(level.get(dir)) + ".json";
+                    nodeFetches.add(executor.submit(() ->
+                            ResourcePackUpdater.JSON_PARSER.parse(httpGetString(url, cb)).getAsJsonObject()));
+                }
+
+                Map<String, byte[]> nextLevel = new LinkedHashMap<>();
+                for (int i = 0; i < changedDirs.size(); i++) {
+                    String dir = changedDirs.get(i);
+                    JsonObject nodeObj;
+                    try {
+                        nodeObj = nodeFetches.get(i).get();
+                    } catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof Exception) throw (Exception) ex.getCause();
+                        throw ex;
+                    }
+                    dirs.add(dir);
+                    String prefix = dir.isEmpty() ? "" : dir + "/";
+                    if (nodeObj.has("files")) {
+                        for (Map.Entry<String, JsonElement> entry : nodeObj.get("files").getAsJsonObject().entrySet()) {
+                            JsonObject fileObj = entry.getValue().getAsJsonObject();
+                            files.put(prefix + entry.getKey(), new FileProperty(fileObj));
+                            if (fileObj.has("patches")) readPatches(prefix + entry.getKey(), fileObj.get("patches").getAsJsonObject());
+                        }
+                    }
+                    if (nodeObj.has("dirs")) {
+                        for (Map.Entry<String, JsonElement> entry : nodeObj.get("dirs").getAsJsonObject().entrySet()) {
+                            nextLevel.put(prefix + entry.getKey(), Hex.decodeHex(entry.getValue().getAsString().toCharArray()));
+                        }
+                    }
+                }
+                level = nextLevel;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (String dir : localMetadata.dirs) {
+            if (isInSubtrees(dir, unchangedDirs)) dirs.add(dir);
+        }
+        for (int i = 0; i < localMetadata.files.size(); i++) {
+            String file = localMetadata.files.getPath(i);
+            if (isInSubtrees(FileIndex.getParentPath(file), unchangedDirs)) {
+                files.put(file, localMetadata.files.getHash(i), 0, 0);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInSubtrees(String path, Set<String> subtrees) {
+        while (true) {
+            if (subtrees.contains(path)) return true;
+            if (path.isEmpty()) return false;
+            path = FileIndex.getParentPath(path);
+        }
+    }
+
+    private void readPatches(String file, JsonObject patchesObj) {
+        Map<String, FileProperty> filePatches = new HashMap<>();
+        for (Map.Entry<String, JsonElement> patch : patchesObj.entrySet()) {
+            filePatches.put(patch.getKey().toLowerCase(Locale.ROOT), new FileProperty(patch.getValue().getAsJsonObject()));
+        }
+        patches.put(file, filePatches);
+    }
+
+    /**
+     * Reads metadata.bin, which holds the same content as metadata.json in a gzip-compressed binary form
+     * that is parsed as it is read, without building a JSON tree or decoding hex strings:
+     * <p>
+     * magic "RPUMTB10", int format version (2), boolean encrypt, string client version ("" for any),
+     * int dir count, then per dir: string path,
+     * int file count, then per file: string path, 20 bytes SHA1, long size, long mtime,
+     * int patched file count, then per file: string path, int patch count, then per patch:
+     * 20 bytes SHA1 of the old version, 20 bytes SHA1 of the patch, long patch size.
+     * Strings are int byte length followed by standard UTF-8 (not the modified UTF-8 of DataOutput.writeUTF).
+     * <p>
+     * Only tried when metadata.sha1 advertises it, since static hosts answer a missing file with anything from
+     * 403 to 404. Returns false if the file is not in a format this version understands, so that JSON is used instead.
+     */
+    private boolean fetchBinary(ProgressReceiver cb) throws Exception {
+        byte[] data = httpGetBytes(baseUrl + "/metadata.bin", cb);
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(data))))) {
+            if (!Arrays.equals(dis.readNBytes(BINARY_METADATA_MAGIC.length), BINARY_METADATA_MAGIC)) return false;
+            if (dis.readInt() != 2) return false;
+            encrypt = dis.readBoolean();
+            String clientVersion = readString(dis);
+            if (!clientVersion.isEmpty()) assertClientVersion(clientVersion);
+
+            int dirCount = dis.readInt();
+            for (int i = 0; i < dirCount; i++) {
+                dirs.add(readString(dis));
+            }
+            int fileCount = dis.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                String path = readString(dis);
+                byte[] hash = new byte[20];
+                dis.readFully(hash);
+                long size = dis.readLong();
+                long mTime = dis.readLong();
+                files.put(path, hash, size, mTime);
+            }
+            int patchedFileCount = dis.readInt();
+            for (int i = 0; i < patchedFileCount; i++) {
+                String path = readString(dis);
+                int patchCount = dis.readInt();
+                Map<String, FileProperty> filePatches = new HashMap<>();
+                for (int j = 0; j < patchCount; j++) {
+                    byte[] fromHash = new byte[20];
+                    dis.readFully(fromHash);
+                    byte[] patchHash = new byte[20];
+                    dis.readFully(patchHash);
+                    filePatches.put(Hex.encodeHexString(fromHash), new FileProperty(patchHash, 0, dis.readLong()));
+                }
+                patches.put(path, filePatches);
+            }
+        } catch (IOException ex) {
+            // Not gzip at all (e.g. an error page served with status 200), cut short, or otherwise malformed
+            return false;
+        }
+        return true;
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+        if (length < 0 || length > MAX_BINARY_STRING_LENGTH) throw new IOException("Invalid string length " + length);
+        byte[] bytes = dis.readNBytes(length);
+        if (bytes.length < length) throw new EOFException("Metadata is cut short");
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     private String httpGetString(String urlStr, ProgressReceiver cb) throws IOException {
+        return new String(httpGetBytes(urlStr, cb), StandardCharsets.UTF_8);
+    }
+
+    private byte[] httpGetBytes(String urlStr, ProgressReceiver cb) throws IOException {
         URL url = new URL(urlStr);
         int retryCount = 0;
         final int MAX_RETRIES = 3;
@@ -88,7 +300,17 @@ public class RemoteMetadata {
             try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
                 try {
                     urlToStream(url, 0, bos, cb);
-                    return bos.toString(StandardCharsets.UTF_8);
+                    return bos.toByteArray();
+                } catch (PackHttpClient.HttpStatusException ex) {
+                    // Retrying will not make a missing or forbidden file appear
+                    if (ex.statusCode >= 400 && ex.statusCode < 500 && ex.statusCode != 408 && ex.statusCode != 429) throw ex;
+                    if (retryCount < MAX_RETRIES) {
+                        cb.printLog(ex.toString());
+                        retryCount++;
+                        cb.printLog(String.format("Retrying (%d/%d) ...", retryCount, MAX_RETRIES));
+                    } else {
+                        throw ex;
+                    }
                 } catch (IOException ex) {
                     if (retryCount < MAX_RETRIES) {
                         cb.printLog(ex.toString());
@@ -115,25 +337,22 @@ public class RemoteMetadata {
     }
 
     private void urlToStream(URL url, long expectedSize, OutputStream target, ProgressReceiver cb) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("User-Agent", "ResourcePackUpdater/" + ResourcePackUpdater.MOD_VERSION + " +https://www.zbx1425.cn");
-        connection.setRequestProperty("Accept-Encoding", "gzip");
-        connection.setConnectTimeout(20000);
-        connection.setReadTimeout(20000);
-
-        if (connection.getResponseCode() >= 400) {
-            throw new IOException("Server returned HTTP " + connection.getResponseCode() + " "
-                    + new String(IOUtils.toByteArray(connection.getErrorStream()), StandardCharsets.UTF_8));
+        HttpResponse<InputStream> response;
+        try {
+            response = PackHttpClient.send(PackHttpClient.newRequest(url.toURI())
+                    .header("Accept-Encoding", "gzip")
+                    .build());
+        } catch (URISyntaxException ex) {
+            throw new IOException(ex);
         }
 
-        long fileSize = connection.getContentLengthLong();
-        if (fileSize == -1) fileSize = expectedSize;
+        long contentLength = PackHttpClient.getContentLength(response);
+        final long fileSize = contentLength == -1 ? expectedSize : contentLength;
 
         long downloadedBytesBefore = downloadedBytes;
         try {
             try (BufferedOutputStream bos = new BufferedOutputStream(target);
-                 InputStream inputStream = DownloadTask.unwrapHttpResponse(connection)) {
+                 InputStream inputStream = PackHttpClient.unwrapHttpResponse(response)) {
                 final ProgressOutputStream pOfs = new ProgressOutputStream(bos, new ProgressOutputStream.WriteListener() {
                     long lastAmount = -1;
                     final long noticeDivisor = 8192;
@@ -169,13 +388,16 @@ public class RemoteMetadata {
 
     public void assertMetadataVersion(JsonObject metadataObj) throws MismatchingVersionException {
         if (metadataObj.has("client_version")) {
-            String requestedVer = metadataObj.get("client_version").getAsString();
-            if (!MtrVersion.parse(ResourcePackUpdater.MOD_VERSION).matches(requestedVer)) {
-                throw new MismatchingVersionException(requestedVer, ResourcePackUpdater.MOD_VERSION);
-            }
+            assertClientVersion(metadataObj.get("client_version").getAsString());
         }
         int metadataVersion = 1;
         if (metadataObj.has("version")) metadataVersion = metadataObj.get("version").getAsInt();
-        if (metadataVersion > 2) throw new MismatchingVersionException("Unsupported metadata protocol version: " + metadataVersion);
+        if (metadataVersion > 3) throw new MismatchingVersionException("Unsupported metadata protocol version: " + metadataVersion);
+    }
+
+    private static void assertClientVersion(String requestedVer) throws MismatchingVersionException {
+        if (!MtrVersion.parse(ResourcePackUpdater.MOD_VERSION).matches(requestedVer)) {
+            throw new MismatchingVersionException(requestedVer, ResourcePackUpdater.MOD_VERSION);
+        }
     }
 }
@@ -1,8 +1,11 @@
 package cn.zbx1425.resourcepackupdater.mixin;
 
 import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
-import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
+import cn.zbx1425.resourcepackupdater.drm.DecryptedAssetCache;
 import cn.zbx1425.resourcepackupdater.drm.ServerLockRegistry;
+import cn.zbx1425.resourcepackupdater.io.PackBlob;
+import cn.zbx1425.resourcepackupdater.io.PackListing;
+import net.minecraft.ResourceLocationException;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.packs.AbstractPackResources;
 import net.minecraft.server.packs.FolderPackResources;
@@ -16,11 +19,15 @@ import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.function.Predicate;
 
@@ -47,15 +54,42 @@ public abstract class FolderPackResourcesMixin extends AbstractPackResources {
     @Shadow
     private File getFile(String string) { return null; }
 
+    @Unique
+    private PackBlob getPackBlob() {
+        return ResourcePackUpdater.CONFIG.packedStorage.value
+                ? PackBlob.get(ResourcePackUpdater.CONFIG.packBaseDirFile.value) : null;
+    }
+
+    @Unique
+    private PackListing getPackListing() {
+        PackBlob packBlob = getPackBlob();
+        if (packBlob != null) return packBlob.getListing();
+        return ResourcePackUpdater.CONFIG.cachedListing.value
+                ? PackListing.get(ResourcePackUpdater.CONFIG.packBaseDirFile.value) : null;
+    }
+
     @Inject(method = "getResource", at = @At("HEAD"), cancellable = true)
     void getResource(String resourcePath, CallbackInfoReturnable<InputStream> cir) throws IOException {
         if (getCanonicalFile().equals(ResourcePackUpdater.CONFIG.packBaseDirFile.value)) {
-            File file = this.getFile(resourcePath);
-            if (file == null || ServerLockRegistry.shouldRefuseProvidingFile(resourcePath)) {
+            if (ServerLockRegistry.shouldRefuseProvidingFile(resourcePath)) {
                 throw new ResourcePackFileNotFoundException(this.file, resourcePath);
             }
-            FileInputStream fis = new FileInputStream(file);
-            cir.setReturnValue(AssetEncryption.wrapInputStream(fis));
+            PackBlob packBlob = getPackBlob();
+            InputStream inputStream = null;
+            if (packBlob != null) {
+                try {
+                    inputStream = packBlob.openEntry(resourcePath);
+                } catch (ClosedChannelException ex) {
+                    // A sync deleted or replaced the blob meanwhile, the folder is what is there now
+                    packBlob = null;
+                }
+            }
+            if (packBlob == null) {
+                File file = this.getFile(resourcePath);
+                inputStream = file == null ? null : DecryptedAssetCache.open(file);
+            }
+            if (inputStream == null) throw new ResourcePackFileNotFoundException(this.file, resourcePath);
+            cir.setReturnValue(inputStream);
             cir.cancel();
         }
     }
@@ -65,6 +99,11 @@ public abstract class FolderPackResourcesMixin extends AbstractPackResources {
         if (getCanonicalFile().equals(ResourcePackUpdater.CONFIG.packBaseDirFile.value)) {
             if (ServerLockRegistry.shouldRefuseProvidingFile(resourcePath)) {
                 cir.setReturnValue(false); cir.cancel();
+                return;
+            }
+            PackBlob packBlob = getPackBlob();
+            if (packBlob != null) {
+                cir.setReturnValue(packBlob.getListing().hasEntry(resourcePath)); cir.cancel();
             }
         }
     }
@@ -72,11 +111,37 @@ public abstract class FolderPackResourcesMixin extends AbstractPackResources {
 #if MC_VERSION >= "11900"
     void getResources(PackType type, String namespace, String path, Predicate<ResourceLocation> filter, CallbackInfoReturnable<Collection<ResourceLocation>> cir) {
 #else
-    void getResources(PackType type, String namespace, String path, int maxDepth, Predicate<ResourceLocation> filter, CallbackInfoReturnable<Collection<ResourceLocation>> cir) {
+    void getResources(PackType type, String namespace, String path, int maxDepth, Predicate<String> filter, CallbackInfoReturnable<Collection<ResourceLocation>> cir) {
 #endif
         if (getCanonicalFile().equals(ResourcePackUpdater.CONFIG.packBaseDirFile.value)) {
             if (ServerLockRegistry.shouldRefuseProvidingFile(null)) {
                 cir.setReturnValue(Collections.emptyList()); cir.cancel();
+                return;
+            }
+            PackListing packListing = getPackListing();
+            if (packListing != null) {
+                // Same results as the folder walk it replaces: metadata files left out, invalid names logged
+                List<ResourceLocation> resources = new ArrayList<>();
+                String pathPrefix = path + "/";
+                for (String entry : packListing.listEntries(type.getDirectory() + "/" + namespace + "/" + pathPrefix)) {
+                    String fileName = entry.substring(entry.lastIndexOf('/') + 1);
+                    if (fileName.endsWith(".mcmeta")) continue;
+#if MC_VERSION < "11900"
+                    if (entry.chars().filter(c -> c == '/').count() > maxDepth || !filter.test(fileName)) continue;
+#endif
+                    ResourceLocation location;
+                    try {
+                        location = new ResourceLocation(namespace, pathPrefix + entry);
+                    } catch (ResourceLocationException ex) {
+                        ResourcePackUpdater.LOGGER.error(ex.getMessage());
+                        continue;
+                    }
+#if MC_VERSION >= "11900"
+                    if (!filter.test(location)) continue;
+#endif
+                    resources.add(location);
+                }
+                cir.setReturnValue(resources); cir.cancel();
             }
         }
     }
@@ -85,6 +150,19 @@ public abstract class FolderPackResourcesMixin extends AbstractPackResources {
         if (getCanonicalFile().equals(ResourcePackUpdater.CONFIG.packBaseDirFile.value)) {
             if (ServerLockRegistry.shouldRefuseProvidingFile(null)) {
                 cir.setReturnValue(Collections.emptySet()); cir.cancel();
+                return;
+            }
+            PackListing packListing = getPackListing();
+            if (packListing != null) {
+                Set<String> namespaces = new HashSet<>();
+                for (String namespace : packListing.listSubdirectories(type.getDirectory() + "/")) {
+                    if (namespace.equals(namespace.toLowerCase(Locale.ROOT))) {
+                        namespaces.add(namespace);
+                    } else {
+                        ResourcePackUpdater.LOGGER.warn("Ignored non-lowercase namespace: {} in {}", namespace, this.file);
+                    }
+                }
+                cir.setReturnValue(namespaces); cir.cancel();
             }
         }
     }
@@ -0,0 +1,159 @@
+package cn.zbx1425.resourcepackupdater.drm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reading encrypted and raw assets through AssetEncryption, from whole files and from regions of a larger file.
+ */
+public class AssetEncryptionTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /** Encrypts the content as version 1, the single AES-CBC blob older releases wrote. */
+    private static byte[] encryptVersion1(byte[] content) throws Exception {
+        byte[] key = AssetEncryption.generateKey();
+        byte[] ciphertext = AssetEncryption.createCipher(Cipher.ENCRYPT_MODE, key).doFinal(content);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(AssetEncryption.encodeHeader(key, ciphertext.length).array());
+        file.write(ciphertext);
+        return file.toByteArray();
+    }
+
+    private static byte[] readAll(Path file) throws IOException {
+        try (InputStream stream = AssetEncryption.wrapInputStream(new FileInputStream(file.toFile()))) {
+            return stream.readAllBytes();
+        }
+    }
+
+    private static byte[] readRegion(Path file, long offset, long length) throws IOException {
+        try (InputStream stream = AssetEncryption.wrapRegion(FileChannel.open(file, StandardOpenOption.READ), offset, length, true)) {
+            return stream.readAllBytes();
+        }
+    }
+
+    @Test
+    public void readsVersion1() throws Exception {
+        for (int length : new int[] { 0, 15, 16, 65536, 200000 }) {
+            byte[] content = randomBytes(length, length);
+            Path file = tempDir.resolve("asset.bin");
+            Files.write(file, encryptVersion1(content));
+            assertArrayEquals(content, readAll(file), "content of length " + length);
+        }
+    }
+
+    @Test
+    public void rawFileIsPassedThrough() throws Exception {
+        byte[] content = randomBytes(1000, 1);
+        Path file = tempDir.resolve("asset.bin");
+        Files.write(file, content);
+        try (FileInputStream fis = new FileInputStream(file.toFile())) {
+            assertFalse(AssetEncryption.isEncrypted(fis));
+            // And left at the start for reading
+            assertEquals(Byte.toUnsignedInt(content[0]), fis.read());
+        }
+        assertArrayEquals(content, readAll(file));
+    }
+
+    @Test
+    public void encryptIfRaw() throws Exception {
+        byte[] content = randomBytes(100000, 1);
+        Path file = tempDir.resolve("asset.bin");
+        Files.write(file, content);
+        AssetEncryption.encryptIfRaw(file.toFile());
+        try (FileInputStream fis = new FileInputStream(file.toFile())) {
+            assertTrue(AssetEncryption.isEncrypted(fis));
+        }
+        byte[] encrypted = Files.readAllBytes(file);
+        assertArrayEquals(content, readAll(file));
+
+        // Already encrypted files are left alone
+        AssetEncryption.encryptIfRaw(file.toFile());
+        assertArrayEquals(encrypted, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void regions() throws Exception {
+        // Raw, version 1 and version 2 content packed one after another, as in a pack blob
+        byte[] raw = randomBytes(5000, 1);
+        byte[] version1Content = randomBytes(70000, 2);
+        byte[] version1 = encryptVersion1(version1Content);
+        byte[] version2Content = randomBytes(3 * AssetEncryption.CHUNK_SIZE + 1, 3);
+        Path version2File = tempDir.resolve("version2.bin");
+        AssetEncryption.writeEncrypted(version2Content, version2File.toFile());
+        byte[] version2 = Files.readAllBytes(version2File);
+        byte[] tiny = { 1, 2, 3 };
+
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        blob.write(randomBytes(17, 4));
+        long rawOffset = blob.size();
+        blob.write(raw);
+        long version1Offset = blob.size();
+        blob.write(version1);
+        long version2Offset = blob.size();
+        blob.write(version2);
+        long tinyOffset = blob.size();
+        blob.write(tiny);
+        blob.write(randomBytes(17, 5));
+        Path file = tempDir.resolve("blob.bin");
+        Files.write(file, blob.toByteArray());
+
+        assertArrayEquals(raw, readRegion(file, rawOffset, raw.length));
+        assertArrayEquals(version1Content, readRegion(file, version1Offset, version1.length));
+        assertArrayEquals(version2Content, readRegion(file, version2Offset, version2.length));
+        // Shorter than a header, so it can only be raw
+        assertArrayEquals(tiny, readRegion(file, tinyOffset, tiny.length));
+
+        try (InputStream stream = AssetEncryption.wrapRegion(FileChannel.open(file, StandardOpenOption.READ),
+                version2Offset, version2.length, true)) {
+            assertEquals(AssetEncryption.CHUNK_SIZE * 2L, stream.skip(AssetEncryption.CHUNK_SIZE * 2L));
+            assertArrayEquals(Arrays.copyOfRange(version2Content, AssetEncryption.CHUNK_SIZE * 2, version2Content.length),
+                    stream.readAllBytes());
+        }
+
+        // A region cut short of what its header says is not read past its end
+        assertThrows(IOException.class, () -> readRegion(file, version2Offset, version2.length - 1));
+    }
+
+    @Test
+    public void regionLeavesSharedChannelOpen() throws Exception {
+        byte[] content = randomBytes(1000, 1);
+        Path file = tempDir.resolve("asset.bin");
+        AssetEncryption.writeEncrypted(content, file.toFile());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            try (InputStream stream = AssetEncryption.wrapRegion(channel, 0, Files.size(file), false)) {
+                assertArrayEquals(content, stream.readAllBytes());
+            }
+            assertTrue(channel.isOpen());
+            try (InputStream stream = AssetEncryption.wrapRegion(channel, 0, Files.size(file), true)) {
+                assertArrayEquals(content, stream.readAllBytes());
+            }
+            assertFalse(channel.isOpen());
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package cn.zbx1425.resourcepackupdater.drm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Version 2 encrypted files as ChunkedEncryptor writes them and ChunkedAssetFile reads them back.
+ */
+public class ChunkedAssetFileTest {
+
+    private static final int CHUNK = AssetEncryption.CHUNK_SIZE;
+    private static final int SEALED_CHUNK = CHUNK + AssetEncryption.CHUNK_TAG_LENGTH;
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private Path writeEncrypted(byte[] content) throws IOException {
+        Path file = tempDir.resolve("asset.bin");
+        AssetEncryption.writeEncrypted(content, file.toFile());
+        return file;
+    }
+
+    private static byte[] readAll(Path file) throws IOException {
+        try (InputStream stream = AssetEncryption.wrapInputStream(new FileInputStream(file.toFile()))) {
+            return stream.readAllBytes();
+        }
+    }
+
+    private static ChunkedAssetFile open(Path file) throws IOException {
+        return ChunkedAssetFile.open(FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    @Test
+    public void roundTripAtChunkBoundaries() throws Exception {
+        int[] lengths = { 0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 2 * CHUNK, 3 * CHUNK + 12345 };
+        for (int length : lengths) {
+            byte[] content = randomBytes(length, length);
+            Path file = writeEncrypted(content);
+            long chunkCount = length == 0 ? 1 : (length + CHUNK - 1) / CHUNK;
+            assertEquals(AssetEncryption.CHUNKED_HEADER_LENGTH + length + chunkCount * AssetEncryption.CHUNK_TAG_LENGTH,
+                    Files.size(file), "file size for length " + length);
+            assertArrayEquals(content, readAll(file), "content of length " + length);
+        }
+    }
+
+    @Test
+    public void encryptorInUnevenPieces() throws Exception {
+        byte[] content = randomBytes(5 * CHUNK + 777, 1);
+        byte[] key = AssetEncryption.generateKey();
+        ChunkedEncryptor encryptor = new ChunkedEncryptor(key);
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        Random random = new Random(2);
+        int pos = 0;
+        while (pos < content.length) {
+            // Pieces both far smaller and larger than a chunk, some ending right on a chunk boundary
+            int n = Math.min(content.length - pos, random.nextBoolean() ? random.nextInt(100) : random.nextInt(3 * CHUNK));
+            if (random.nextInt(4) == 0) n = Math.min(content.length - pos, CHUNK - pos % CHUNK);
+            ciphertext.write(encryptor.update(content, pos, n));
+            pos += n;
+        }
+        ciphertext.write(encryptor.doFinal());
+        assertEquals(content.length, encryptor.getPlainLength());
+
+        Path file = tempDir.resolve("asset.bin");
+        Files.write(file, AssetEncryption.encodeChunkedHeader(key, content.length).array());
+        Files.write(file, ciphertext.toByteArray(), StandardOpenOption.APPEND);
+        assertArrayEquals(content, readAll(file));
+    }
+
+    @Test
+    public void randomReads() throws Exception {
+        byte[] content = randomBytes(4 * CHUNK + 100, 1);
+        Path file = writeEncrypted(content);
+        Random random = new Random(3);
+        try (ChunkedAssetFile asset = open(file)) {
+            assertEquals(content.length, asset.size());
+            for (int i = 0; i < 200; i++) {
+                int position = random.nextInt(content.length);
+                byte[] buffer = new byte[1 + random.nextInt(2 * CHUNK)];
+                int n = asset.read(position, buffer, 0, buffer.length);
+                // A read stops at the end of a chunk
+                assertEquals(Math.min(buffer.length, Math.min(CHUNK - position % CHUNK, content.length - position)), n);
+                assertArrayEquals(Arrays.copyOfRange(content, position, position + n), Arrays.copyOf(buffer, n));
+            }
+            assertEquals(-1, asset.read(content.length, new byte[1], 0, 1));
+        }
+    }
+
+    @Test
+    public void skip() throws Exception {
+        byte[] content = randomBytes(3 * CHUNK, 1);
+        Path file = writeEncrypted(content);
+        try (InputStream stream = open(file).newInputStream()) {
+            assertEquals(CHUNK + 10, stream.skip(CHUNK + 10));
+            assertEquals(Byte.toUnsignedInt(content[CHUNK + 10]), stream.read());
+            assertEquals(content.length - CHUNK - 11, stream.available());
+            assertArrayEquals(Arrays.copyOfRange(content, CHUNK + 11, 2 * CHUNK), stream.readNBytes(CHUNK - 11));
+            assertEquals(CHUNK, stream.skip(10L * CHUNK));
+            assertEquals(-1, stream.read());
+            assertEquals(0, stream.available());
+        }
+    }
+
+    @Test
+    public void flippedBitIsRejected() throws Exception {
+        byte[] content = randomBytes(3 * CHUNK, 1);
+        Path file = writeEncrypted(content);
+        byte[] data = Files.readAllBytes(file);
+        data[AssetEncryption.CHUNKED_HEADER_LENGTH + SEALED_CHUNK + 1000] ^= 0x10;
+        Files.write(file, data);
+
+        try (ChunkedAssetFile asset = open(file)) {
+            // The chunks around it are still fine
+            byte[] buffer = new byte[CHUNK];
+            assertEquals(CHUNK, asset.read(0, buffer, 0, CHUNK));
+            assertEquals(CHUNK, asset.read(2 * CHUNK, buffer, 0, CHUNK));
+            IOException ex = assertThrows(IOException.class, () -> asset.read(CHUNK, buffer, 0, CHUNK));
+            assertEquals("Chunk 1 of encrypted file is damaged", ex.getMessage());
+        }
+        assertThrows(IOException.class, () -> readAll(file));
+    }
+
+    @Test
+    public void flippedTagIsRejected() throws Exception {
+        Path file = writeEncrypted(randomBytes(100, 1));
+        byte[] data = Files.readAllBytes(file);
+        data[data.length - 1] ^= 1;
+        Files.write(file, data);
+        assertThrows(IOException.class, () -> readAll(file));
+    }
+
+    @Test
+    public void swappedChunksAreRejected() throws Exception {
+        Path file = writeEncrypted(randomBytes(3 * CHUNK, 1));
+        byte[] data = Files.readAllBytes(file);
+        int first = AssetEncryption.CHUNKED_HEADER_LENGTH;
+        byte[] chunk0 = Arrays.copyOfRange(data, first, first + SEALED_CHUNK);
+        System.arraycopy(data, first + SEALED_CHUNK, data, first, SEALED_CHUNK);
+        System.arraycopy(chunk0, 0, data, first + SEALED_CHUNK, SEALED_CHUNK);
+        Files.write(file, data);
+        assertThrows(IOException.class, () -> readAll(file));
+    }
+
+    @Test
+    public void truncationIsRejected() throws Exception {
+        Path file = writeEncrypted(randomBytes(3 * CHUNK, 1));
+        byte[] data = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(data, data.length - 1));
+        EOFException ex = assertThrows(EOFException.class, () -> open(file));
+        assertEquals("Encrypted content is truncated", ex.getMessage());
+
+        Files.write(file, Arrays.copyOf(data, AssetEncryption.CHUNKED_HEADER_LENGTH - 1));
+        assertThrows(EOFException.class, () -> open(file));
+    }
+
+    @Test
+    public void droppedTrailingChunksAreRejected() throws Exception {
+        // Cutting whole chunks off and fixing up the length in the header leaves a consistent looking file,
+        // but what is now its last chunk was not sealed as one
+        byte[] content = randomBytes(3 * CHUNK + 500, 1);
+        Path file = writeEncrypted(content);
+        byte[] data = Files.readAllBytes(file);
+        byte[] truncated = Arrays.copyOf(data, AssetEncryption.CHUNKED_HEADER_LENGTH + 2 * SEALED_CHUNK);
+        ByteBuffer.wrap(truncated).putLong(AssetEncryption.CHUNKED_HEADER_LENGTH - 8, 2L * CHUNK);
+        Files.write(file, truncated);
+
+        try (ChunkedAssetFile asset = open(file)) {
+            assertEquals(2L * CHUNK, asset.size());
+            byte[] buffer = new byte[CHUNK];
+            assertEquals(CHUNK, asset.read(0, buffer, 0, CHUNK));
+            assertThrows(IOException.class, () -> asset.read(CHUNK, buffer, 0, CHUNK));
+        }
+    }
+}
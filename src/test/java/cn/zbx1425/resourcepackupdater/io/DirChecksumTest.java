@@ -0,0 +1,80 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * LocalMetadata.getDirChecksum digests the paths and hashes directly. Servers publish checksums computed the
+ * old way, by writing everything into a netty buffer first, so both must give the same bytes.
+ */
+public class DirChecksumTest {
+
+    /** The computation getDirChecksum replaced, kept as it was. */
+    private static byte[] bufferedDirChecksum(LocalMetadata metadata) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        ByteBuf buf = Unpooled.buffer(1024 * 512);
+        metadata.dirs.stream().sorted().forEach(dir -> buf.writeCharSequence(dir, StandardCharsets.UTF_8));
+        for (int i = 0; i < metadata.files.size(); i++) {
+            buf.writeCharSequence(metadata.files.getPath(i), StandardCharsets.UTF_8);
+            buf.writeBytes(metadata.files.getHash(i));
+        }
+        buf.capacity(buf.writerIndex());
+        InputStream fis = new ByteArrayInputStream(buf.array());
+        int n = 0;
+        byte[] buffer = new byte[8192];
+        while (n != -1) {
+            n = fis.read(buffer);
+            if (n > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static void assertSameChecksum(LocalMetadata metadata) throws Exception {
+        assertArrayEquals(bufferedDirChecksum(metadata), metadata.getDirChecksum());
+    }
+
+    @Test
+    public void emptyPack() throws Exception {
+        assertSameChecksum(new LocalMetadata("pack"));
+    }
+
+    @Test
+    public void nonAsciiPaths() throws Exception {
+        LocalMetadata metadata = new LocalMetadata("pack");
+        metadata.dirs.addAll(List.of("", "assets", "assets/минимап", "assets/地图", "assets/😀"));
+        Random random = new Random(1425);
+        for (String path : List.of("assets/минимап/карта.png", "assets/地图/纹理.json", "assets/😀/🚆.ogg",
+                "assets/Ärger/ß.txt", "pack.mcmeta")) {
+            byte[] hash = new byte[FileIndex.HASH_LENGTH];
+            random.nextBytes(hash);
+            metadata.files.put(path, hash, 0, 0);
+        }
+        assertSameChecksum(metadata);
+    }
+
+    @Test
+    public void largePack() throws Exception {
+        // Beyond the initial capacity of the old buffer, with dirs given out of order
+        LocalMetadata metadata = new LocalMetadata("pack");
+        Random random = new Random(1425);
+        for (int i = 2999; i >= 0; i--) metadata.dirs.add("assets/dir" + i + "/ü");
+        for (int i = 0; i < 20000; i++) {
+            byte[] hash = new byte[FileIndex.HASH_LENGTH];
+            random.nextBytes(hash);
+            metadata.files.put("assets/dir" + (i % 3000) + "/ü/file" + i + "_字.png", hash, 0, 0);
+        }
+        assertSameChecksum(metadata);
+    }
+}
@@ -0,0 +1,176 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The cache file of HashCache. A hash that comes back different from the content of its file can only have been
+ * read from the cache file, which is how these tests tell a cache hit from a rehash.
+ */
+public class HashCacheTest {
+
+    private static final List<String> PATHS = List.of("pack.mcmeta", "assets/минимап/карта.png",
+            "assets/地图/纹理.json", "assets/😀/🚆.ogg", "assets/Ärger/ß.txt");
+    private static final long MTIME = 1700000000000L;
+
+    @TempDir
+    Path packDir;
+
+    private Path createFile(String path) throws Exception {
+        Path file = packDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "content of " + path);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(MTIME));
+        return file;
+    }
+
+    private static byte[] fakeHash(int index) {
+        byte[] hash = new byte[20];
+        Arrays.fill(hash, (byte) (index + 1));
+        return hash;
+    }
+
+    private byte[] getDigest(HashCache hashCache, Path file) throws Exception {
+        return hashCache.getDigest(file, Files.readAttributes(file, BasicFileAttributes.class));
+    }
+
+    /** Fills a cache with made-up hashes for the files, as if they had been hashed before. */
+    private HashCache createCache() throws Exception {
+        HashCache hashCache = new HashCache(packDir);
+        for (int i = 0; i < PATHS.size(); i++) {
+            hashCache.putDigest(createFile(PATHS.get(i)), fakeHash(i));
+        }
+        return hashCache;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Path cacheFile = packDir.resolve("cache.bin");
+        createCache().save(cacheFile);
+
+        HashCache loaded = new HashCache(packDir);
+        loaded.load(cacheFile);
+        assertEquals(PATHS.size(), loaded.size());
+        for (int i = 0; i < PATHS.size(); i++) {
+            assertArrayEquals(fakeHash(i), getDigest(loaded, packDir.resolve(PATHS.get(i))), PATHS.get(i));
+        }
+        assertEquals(PATHS.size(), loaded.size());
+    }
+
+    @Test
+    public void changedFileIsRehashed() throws Exception {
+        Path cacheFile = packDir.resolve("cache.bin");
+        createCache().save(cacheFile);
+        Path changed = packDir.resolve(PATHS.get(1));
+        Files.writeString(changed, "changed");
+        Files.setLastModifiedTime(changed, FileTime.fromMillis(MTIME));
+
+        HashCache loaded = new HashCache(packDir);
+        loaded.load(cacheFile);
+        // Same mtime, but the size differs
+        assertArrayEquals(DigestUtils.sha1("changed"), getDigest(loaded, changed));
+        assertEquals(PATHS.size(), loaded.size());
+    }
+
+    @Test
+    public void corruptedFileIsDropped() throws Exception {
+        Path cacheFile = packDir.resolve("cache.bin");
+        createCache().save(cacheFile);
+        byte[] data = Files.readAllBytes(cacheFile);
+        data[data.length - 1] ^= 1;
+        Files.write(cacheFile, data);
+
+        HashCache loaded = new HashCache(packDir);
+        loaded.load(cacheFile);
+        assertEquals(0, loaded.size());
+        Path file = packDir.resolve(PATHS.get(0));
+        assertArrayEquals(DigestUtils.sha1(Files.readAllBytes(file)), getDigest(loaded, file));
+    }
+
+    @Test
+    public void readsVersion2() throws Exception {
+        for (String path : PATHS) createFile(path);
+        List<byte[]> keys = PATHS.stream().map(path -> path.getBytes(StandardCharsets.UTF_8))
+                .sorted(Arrays::compareUnsigned).toList();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(body);
+        int offset = 12 + keys.size() * 4;
+        for (byte[] key : keys) {
+            dos.writeInt(offset);
+            offset += 4 + key.length + 8 + 4 + 20;
+        }
+        for (byte[] key : keys) {
+            dos.writeInt(key.length);
+            dos.write(key);
+            dos.writeLong(MTIME);
+            dos.writeInt(20);
+            dos.write(fakeHash(PATHS.indexOf(new String(key, StandardCharsets.UTF_8))));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.toByteArray());
+        ByteBuffer header = ByteBuffer.allocate(12).putInt(2).putInt(keys.size()).putInt((int) crc.getValue());
+        Path cacheFile = packDir.resolve("cache.bin");
+        Files.write(cacheFile, header.array());
+        Files.write(cacheFile, body.toByteArray(), StandardOpenOption.APPEND);
+
+        HashCache loaded = new HashCache(packDir);
+        loaded.load(cacheFile);
+        assertEquals(PATHS.size(), loaded.size());
+        for (int i = 0; i < PATHS.size(); i++) {
+            assertArrayEquals(fakeHash(i), getDigest(loaded, packDir.resolve(PATHS.get(i))), PATHS.get(i));
+        }
+        // The entries got the attributes version 2 lacks, without being counted twice
+        assertEquals(PATHS.size(), loaded.size());
+
+        // And are written as version 3
+        Path upgradedFile = packDir.resolve("upgraded.bin");
+        loaded.save(upgradedFile);
+        assertEquals(3, ByteBuffer.wrap(Files.readAllBytes(upgradedFile)).getInt(0));
+        HashCache upgraded = new HashCache(packDir);
+        upgraded.load(upgradedFile);
+        for (int i = 0; i < PATHS.size(); i++) {
+            assertArrayEquals(fakeHash(i), getDigest(upgraded, packDir.resolve(PATHS.get(i))), PATHS.get(i));
+        }
+    }
+
+    @Test
+    public void readsVersion1() throws Exception {
+        // Version 1 wrote paths with DataOutput.writeBytes, so only ASCII ones can be found again
+        String path = PATHS.get(0);
+        createFile(path);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(data);
+        dos.writeInt(1);
+        dos.writeInt(1);
+        dos.writeInt(path.length());
+        dos.writeBytes(path);
+        dos.writeLong(MTIME);
+        dos.writeInt(20);
+        dos.write(fakeHash(0));
+        Path cacheFile = packDir.resolve("cache.bin");
+        Files.write(cacheFile, data.toByteArray());
+
+        HashCache loaded = new HashCache(packDir);
+        loaded.load(cacheFile);
+        assertEquals(1, loaded.size());
+        assertArrayEquals(fakeHash(0), getDigest(loaded, packDir.resolve(path)));
+        assertEquals(1, loaded.size());
+    }
+}
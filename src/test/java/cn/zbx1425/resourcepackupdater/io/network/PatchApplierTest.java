@@ -0,0 +1,146 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
+import cn.zbx1425.resourcepackupdater.io.HashCache;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The RPUPAT10 patch format as PatchApplier reads it: a gzip stream of the magic, then copy, insert and end operations.
+ */
+public class PatchApplierTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static class PatchBuilder {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream dos = new DataOutputStream(bytes);
+
+        PatchBuilder() throws IOException {
+            dos.write("RPUPAT10".getBytes(StandardCharsets.UTF_8));
+        }
+
+        PatchBuilder copy(long offset, int length) throws IOException {
+            dos.writeByte(1);
+            dos.writeLong(offset);
+            dos.writeInt(length);
+            return this;
+        }
+
+        PatchBuilder insert(byte[] data) throws IOException {
+            dos.writeByte(2);
+            dos.writeInt(data.length);
+            dos.write(data);
+            return this;
+        }
+
+        PatchBuilder op(int op) throws IOException {
+            dos.writeByte(op);
+            return this;
+        }
+
+        byte[] build() throws IOException {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(bytes.toByteArray());
+            }
+            return compressed.toByteArray();
+        }
+    }
+
+    private byte[] applyPatch(Path oldFile, byte[] patch) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        PatchApplier.applyPatch(oldFile, new ByteArrayInputStream(patch), result);
+        return result.toByteArray();
+    }
+
+    @Test
+    public void copyAndInsert() throws Exception {
+        byte[] oldContent = randomBytes(200000, 1);
+        Path oldFile = tempDir.resolve("old.bin");
+        Files.write(oldFile, oldContent);
+        byte[] inserted = "HELLO PATCH".getBytes(StandardCharsets.UTF_8);
+        byte[] patch = new PatchBuilder().copy(0, 50000).insert(inserted).copy(60000, 140000).op(0).build();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(oldContent, 0, 50000);
+        expected.write(inserted);
+        expected.write(oldContent, 60000, 140000);
+        assertArrayEquals(expected.toByteArray(), applyPatch(oldFile, patch));
+    }
+
+    @Test
+    public void copyPastEndOfOldFile() throws Exception {
+        Path oldFile = tempDir.resolve("old.bin");
+        Files.write(oldFile, randomBytes(1000, 1));
+        byte[] patch = new PatchBuilder().copy(900, 200).op(0).build();
+        assertThrows(EOFException.class, () -> applyPatch(oldFile, patch));
+    }
+
+    @Test
+    public void unknownOperation() throws Exception {
+        Path oldFile = tempDir.resolve("old.bin");
+        Files.write(oldFile, randomBytes(1000, 1));
+        byte[] patch = new PatchBuilder().copy(0, 10).op(3).build();
+        IOException ex = assertThrows(IOException.class, () -> applyPatch(oldFile, patch));
+        assertEquals("Unknown patch operation 3", ex.getMessage());
+    }
+
+    @Test
+    public void notAPatch() throws Exception {
+        Path oldFile = tempDir.resolve("old.bin");
+        Files.write(oldFile, randomBytes(1000, 1));
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write("RPUPAT99".getBytes(StandardCharsets.UTF_8));
+        }
+        assertThrows(IOException.class, () -> applyPatch(oldFile, compressed.toByteArray()));
+    }
+
+    @Test
+    public void chunkedEncryptedOldFile() throws Exception {
+        // Spans several chunks, with copies starting inside one chunk and ending in another
+        byte[] oldContent = randomBytes(300000, 1);
+        Path oldFile = tempDir.resolve("old.bin");
+        PackOutputStream oldStream = new PackOutputStream(oldFile, true, new HashCache(tempDir), DigestUtils.sha1(oldContent));
+        oldStream.write(oldContent);
+        oldStream.close();
+        try (FileInputStream fis = new FileInputStream(oldFile.toFile())) {
+            assertTrue(AssetEncryption.isEncrypted(fis));
+        }
+
+        byte[] inserted = randomBytes(70000, 2);
+        byte[] patch = new PatchBuilder().copy(65000, 100000).insert(inserted).copy(250000, 50000).op(0).build();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(oldContent, 65000, 100000);
+        expected.write(inserted);
+        expected.write(oldContent, 250000, 50000);
+        assertArrayEquals(expected.toByteArray(), applyPatch(oldFile, patch));
+    }
+}